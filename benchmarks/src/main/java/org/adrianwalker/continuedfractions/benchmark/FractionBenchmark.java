@@ -0,0 +1,73 @@
+package org.adrianwalker.continuedfractions.benchmark;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import org.adrianwalker.continuedfractions.Fraction;
+import static org.adrianwalker.continuedfractions.benchmark.Paths.path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FractionBenchmark {
+
+  @Param({"1", "4", "8"})
+  private int depth;
+  @Param({"1", "100"})
+  private int ordinal;
+
+  private int[] path;
+  private long[] f;
+  private byte[] b;
+
+  @Setup
+  public void setup() {
+
+    path = path(depth, ordinal);
+    f = Fraction.fraction(path);
+    b = Fraction.binary(path);
+  }
+
+  @Benchmark
+  public long[] fraction() {
+
+    return Fraction.fraction(path);
+  }
+
+  @Benchmark
+  public int[] continued() {
+
+    return Fraction.continued(f);
+  }
+
+  @Benchmark
+  public int[] continuedBinary() {
+
+    return Fraction.continued(b);
+  }
+
+  @Benchmark
+  public BigDecimal decimal() {
+
+    return Fraction.decimal(f);
+  }
+
+  @Benchmark
+  public byte[] binary() {
+
+    return Fraction.binary(path);
+  }
+}
@@ -0,0 +1,81 @@
+package org.adrianwalker.continuedfractions.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.adrianwalker.continuedfractions.Key;
+import org.adrianwalker.continuedfractions.Keys;
+import org.adrianwalker.continuedfractions.Transform;
+import static org.adrianwalker.continuedfractions.benchmark.Paths.path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeysBenchmark {
+
+  @Param({"1", "8", "32", "64"})
+  private int depth;
+  @Param({"1", "1000"})
+  private int ordinal;
+
+  private int[] path;
+  private final Key key = new Key();
+  private final Key parent = new Key();
+  private final Key p0 = new Key();
+  private final Key p1 = new Key();
+  private final Key moved = new Key();
+  private Transform transform;
+
+  @Setup
+  public void setup() {
+
+    path = path(depth, ordinal);
+    Keys.key(path, key);
+    Keys.key(path, 0, depth - 1, parent);
+    Keys.key(path, 0, depth - 1, p0);
+    Keys.key(path(1, ordinal + 1), p1);
+    transform = new Transform(p0, 1, p1, ordinal);
+  }
+
+  @Benchmark
+  public Key key() {
+
+    return Keys.key(path, key);
+  }
+
+  @Benchmark
+  public Key child() {
+
+    return Keys.child(parent, ordinal, moved);
+  }
+
+  @Benchmark
+  public int ordinal() {
+
+    return Keys.ordinal(key);
+  }
+
+  @Benchmark
+  public Key moveSubtree() {
+
+    return Keys.moveSubtree(p0, 1, p1, ordinal, key, moved);
+  }
+
+  @Benchmark
+  public Key transform() {
+
+    return transform.apply(key, moved);
+  }
+}
@@ -0,0 +1,58 @@
+package org.adrianwalker.continuedfractions.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.adrianwalker.continuedfractions.Key;
+import org.adrianwalker.continuedfractions.Keys;
+import org.adrianwalker.continuedfractions.Matrix;
+import static org.adrianwalker.continuedfractions.benchmark.Paths.path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatrixBenchmark {
+
+  @Param({"2", "4", "6"})
+  private int depth;
+  @Param({"1", "100"})
+  private int ordinal;
+
+  private long[][] p0;
+  private long[][] p1;
+  private long[][] M;
+
+  @Setup
+  public void setup() {
+
+    int[] path = path(depth, ordinal);
+
+    p0 = Matrix.matrix(Keys.key(path, 0, depth - 1, new Key()));
+    p1 = Matrix.matrix(Keys.key(path(1, ordinal + 1), new Key()));
+    M = Matrix.matrix(Keys.key(path, new Key()));
+  }
+
+  @Benchmark
+  public long[][] moveSubtree() {
+
+    return Matrix.moveSubtree(p0, 1, p1, ordinal, M);
+  }
+
+  @Benchmark
+  public long[][] multiply() {
+
+    return Matrix.multiply(p1, p0);
+  }
+}
@@ -0,0 +1,56 @@
+package org.adrianwalker.continuedfractions.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.adrianwalker.continuedfractions.filesystem.Path;
+import static org.adrianwalker.continuedfractions.benchmark.Paths.path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBenchmark {
+
+  @Param({"1", "8", "32", "64"})
+  private int depth;
+  @Param({"1", "1000"})
+  private int ordinal;
+
+  private int[] path;
+
+  @Setup
+  public void setup() {
+
+    path = path(depth, ordinal);
+  }
+
+  @Benchmark
+  public int[] sibling() {
+
+    return Path.sibling(path);
+  }
+
+  @Benchmark
+  public int[] parent() {
+
+    return Path.parent(path);
+  }
+
+  @Benchmark
+  public int[] range() {
+
+    return Path.range(path, 0, depth / 2 + 1);
+  }
+}
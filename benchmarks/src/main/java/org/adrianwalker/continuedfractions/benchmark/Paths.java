@@ -0,0 +1,17 @@
+package org.adrianwalker.continuedfractions.benchmark;
+
+import java.util.Arrays;
+
+final class Paths {
+
+  private Paths() {
+  }
+
+  static int[] path(final int depth, final int ordinal) {
+
+    int[] path = new int[depth];
+    Arrays.fill(path, ordinal);
+
+    return path;
+  }
+}
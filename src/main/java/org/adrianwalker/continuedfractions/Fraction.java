@@ -1,88 +1,203 @@
 package org.adrianwalker.continuedfractions;
 
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.math.RoundingMode;
-import java.util.ArrayList;
-import java.util.List;
+import static java.lang.Math.addExact;
+import static java.lang.Math.multiplyExact;
+import static java.lang.Math.subtractExact;
+import static org.adrianwalker.continuedfractions.Keys.key;
 
 public final class Fraction {
 
-  private static final int[][] F = {
-    {0, 1},
-    {1, 1}
-  };
   private static final int PRECISION = 16;
+  private static final int SHORT_TERM = 0xF8;
 
   private Fraction() {
   }
 
-  public static int[] fraction(final int n, final int d) {
+  public static long[] fraction(final long n, final long d) {
 
-    return new int[]{n, d};
+    return new long[]{n, d};
   }
 
-  public static int[] fraction(final int[] pf, final int c, final int[] spf) {
+  public static long[] fraction(final long[] pf, final int c, final long[] spf) {
 
-    return fraction(pf[0] + c * spf[0], pf[1] + c * spf[1]);
+    return fraction(addExact(pf[0], multiplyExact((long) c, spf[0])), addExact(pf[1], multiplyExact((long) c, spf[1])));
   }
 
-  public static int[] fraction(final int[] c) {
+  public static long[] fraction(final int[] c) {
 
-    int[] f = F[0];
+    Key key = key(c, new Key());
 
-    for (int i = c.length - 1; i >= 0; i--) {
-      f = add(F[1], invert(f));
-      f = add(fraction(c[i], 1), invert(f));
-    }
+    return fraction(key.getNv(), key.getDv());
+  }
+
+  public static int[] continued(final long[] f) {
 
-    return f;
+    return continued(f[0], f[1]);
   }
 
-  public static int[] continued(final int[] f) {
+  public static int[] continued(final long n, final long d) {
+
+    int length = 0;
+    for (long a0 = n, a1 = d; a0 > 0; length++) {
+      long r = a0 % a1;
+      a0 = r;
+      a1 = a1 - r;
+    }
+
+    int[] c = new int[length];
+    long a0 = n;
+    long a1 = d;
+    for (int i = 0; i < length; i++) {
+      c[i] = (int) (a0 / a1);
+      long r = a0 % a1;
+      a0 = r;
+      a1 = a1 - r;
+    }
+
+    return c;
+  }
 
-    int[] a = f;
+  public static int[] continued(final BigInteger n, final BigInteger d) {
 
-    List<Integer> c = new ArrayList<>();
-    while (a[0] > 0) {
+    if (n.bitLength() < Long.SIZE && d.bitLength() < Long.SIZE) {
+      return continued(n.longValue(), d.longValue());
+    }
 
-      int i = a[0] / a[1];
-      c.add(i);
+    int length = 0;
+    for (BigInteger a0 = n, a1 = d; a0.signum() > 0; length++) {
+      BigInteger r = a0.mod(a1);
+      a0 = r;
+      a1 = a1.subtract(r);
+    }
 
-      a = invert(subtract(a, fraction(i, 1)));
-      a = invert(subtract(a, F[1]));
+    int[] c = new int[length];
+    BigInteger a0 = n;
+    BigInteger a1 = d;
+    for (int i = 0; i < length; i++) {
+      BigInteger[] qr = a0.divideAndRemainder(a1);
+      c[i] = qr[0].intValueExact();
+      a0 = qr[1];
+      a1 = a1.subtract(qr[1]);
     }
 
-    return toArray(c);
+    return c;
   }
 
-  public static BigDecimal decimal(final int[] f) {
+  public static int[] continued(final byte[] b) {
 
-    return BigDecimal.valueOf(f[0]).divide(BigDecimal.valueOf(f[1]), PRECISION, RoundingMode.HALF_DOWN);
+    int length = 0;
+    for (int i = 0; i < b.length; length++) {
+      i += headerLength(b[i]);
+    }
+
+    int[] c = new int[length];
+    for (int i = 0, j = 0; j < length; j++) {
+
+      int header = b[i] & 0xFF;
+      int n = headerLength(b[i]);
+
+      if (1 == n) {
+        c[j] = header;
+      } else {
+        for (int k = i + 1; k < i + n; k++) {
+          c[j] = (c[j] << 8) | (b[k] & 0xFF);
+        }
+      }
+
+      i += n;
+    }
+
+    return c;
   }
 
-  public static int[] add(final int[] f1, final int[] f2) {
+  /**
+   * Exact binary form of the fraction with continued fraction terms c. Each term
+   * below 0xF8 is one byte, larger terms are a length byte followed by the term's
+   * big endian bytes, so unsigned byte order is the same as fraction order and a
+   * node's bytes are a prefix of all of its descendants' bytes.
+   */
+  public static byte[] binary(final int[] c) {
+
+    int length = 0;
+    for (int term : c) {
+      length += termLength(term);
+    }
+
+    byte[] b = new byte[length];
+    int i = 0;
+
+    for (int term : c) {
+
+      int n = termLength(term);
+
+      if (1 == n) {
+        b[i++] = (byte) term;
+      } else {
+        b[i++] = (byte) (SHORT_TERM + n - 2);
+        for (int shift = 8 * (n - 2); shift >= 0; shift -= 8) {
+          b[i++] = (byte) (term >>> shift);
+        }
+      }
+    }
 
-    return fraction((f1[0] * f2[1]) + (f2[0] * f1[1]), f2[1] * f1[1]);
+    return b;
   }
 
-  public static int[] subtract(final int[] f1, final int[] f2) {
+  public static byte[] binary(final long[] f) {
 
-    return fraction((f1[0] * f2[1]) - (f2[0] * f1[1]), f1[1] * f2[1]);
+    return binary(continued(f));
   }
 
-  public static int[] invert(final int[] f) {
+  private static int termLength(final int term) {
 
-    return fraction(f[1], f[0]);
+    if (term < SHORT_TERM) {
+      return 1;
+    }
+
+    return 1 + (Integer.SIZE - Integer.numberOfLeadingZeros(term) + 7) / 8;
   }
 
-  private static int[] toArray(final List<Integer> l) {
+  private static int headerLength(final byte header) {
 
-    int[] a = new int[l.size()];
+    int h = header & 0xFF;
 
-    for (int i = 0; i < a.length; i++) {
-      a[i] = l.get(i);
+    if (h < SHORT_TERM) {
+      return 1;
     }
 
-    return a;
+    return h - SHORT_TERM + 2;
+  }
+
+  public static BigDecimal decimal(final long[] f) {
+
+    return decimal(f[0], f[1]);
+  }
+
+  public static BigDecimal decimal(final long n, final long d) {
+
+    return BigDecimal.valueOf(n).divide(BigDecimal.valueOf(d), PRECISION, RoundingMode.HALF_DOWN);
+  }
+
+  public static BigDecimal decimal(final BigInteger n, final BigInteger d) {
+
+    return new BigDecimal(n).divide(new BigDecimal(d), PRECISION, RoundingMode.HALF_DOWN);
+  }
+
+  public static long[] add(final long[] f1, final long[] f2) {
+
+    return fraction(addExact(multiplyExact(f1[0], f2[1]), multiplyExact(f2[0], f1[1])), multiplyExact(f2[1], f1[1]));
+  }
+
+  public static long[] subtract(final long[] f1, final long[] f2) {
+
+    return fraction(subtractExact(multiplyExact(f1[0], f2[1]), multiplyExact(f2[0], f1[1])), multiplyExact(f1[1], f2[1]));
+  }
+
+  public static long[] invert(final long[] f) {
+
+    return fraction(f[1], f[0]);
   }
 }
@@ -0,0 +1,105 @@
+package org.adrianwalker.continuedfractions;
+
+import java.math.BigInteger;
+
+public final class Key {
+
+  private static final int LONG_BITS = 63;
+
+  private long nv;
+  private long dv;
+  private long snv;
+  private long sdv;
+  private BigInteger[] wide;
+
+  public Key() {
+  }
+
+  public Key(final long nv, final long dv, final long snv, final long sdv) {
+
+    set(nv, dv, snv, sdv);
+  }
+
+  public Key(final BigInteger nv, final BigInteger dv, final BigInteger snv, final BigInteger sdv) {
+
+    set(nv, dv, snv, sdv);
+  }
+
+  public Key set(final long nv, final long dv, final long snv, final long sdv) {
+
+    this.nv = nv;
+    this.dv = dv;
+    this.snv = snv;
+    this.sdv = sdv;
+    this.wide = null;
+
+    return this;
+  }
+
+  public Key set(final BigInteger nv, final BigInteger dv, final BigInteger snv, final BigInteger sdv) {
+
+    if (nv.bitLength() <= LONG_BITS && dv.bitLength() <= LONG_BITS
+            && snv.bitLength() <= LONG_BITS && sdv.bitLength() <= LONG_BITS) {
+
+      return set(nv.longValue(), dv.longValue(), snv.longValue(), sdv.longValue());
+    }
+
+    this.wide = new BigInteger[]{nv, dv, snv, sdv};
+
+    return this;
+  }
+
+  public Key set(final Key key) {
+
+    if (key.isWide()) {
+      return set(key.wide[0], key.wide[1], key.wide[2], key.wide[3]);
+    }
+
+    return set(key.nv, key.dv, key.snv, key.sdv);
+  }
+
+  public boolean isWide() {
+    return null != wide;
+  }
+
+  public long getNv() {
+    return narrow(nv);
+  }
+
+  public long getDv() {
+    return narrow(dv);
+  }
+
+  public long getSnv() {
+    return narrow(snv);
+  }
+
+  public long getSdv() {
+    return narrow(sdv);
+  }
+
+  public BigInteger getBigNv() {
+    return isWide() ? wide[0] : BigInteger.valueOf(nv);
+  }
+
+  public BigInteger getBigDv() {
+    return isWide() ? wide[1] : BigInteger.valueOf(dv);
+  }
+
+  public BigInteger getBigSnv() {
+    return isWide() ? wide[2] : BigInteger.valueOf(snv);
+  }
+
+  public BigInteger getBigSdv() {
+    return isWide() ? wide[3] : BigInteger.valueOf(sdv);
+  }
+
+  private long narrow(final long value) {
+
+    if (isWide()) {
+      throw new ArithmeticException("long overflow");
+    }
+
+    return value;
+  }
+}
@@ -0,0 +1,226 @@
+package org.adrianwalker.continuedfractions;
+
+import java.math.BigInteger;
+
+/**
+ * Allocation free key arithmetic. A node's key is the quad nv/dv, snv/sdv, where
+ * snv/sdv is the key of the node's next sibling. The key of child c of a node is
+ * (nv + c * snv) / (dv + c * sdv), so a path is keyed in one pass from the
+ * virtual root 0/1, 1/0.
+ *
+ * Arithmetic runs on longs and only continues in BigInteger from the step that
+ * could overflow.
+ */
+public final class Keys {
+
+  private Keys() {
+  }
+
+  public static Key root(final Key key) {
+
+    return key.set(0, 1, 1, 0);
+  }
+
+  public static Key key(final int[] path, final Key key) {
+
+    return key(path, 0, path.length, key);
+  }
+
+  public static Key key(final int[] path, final int from, final int to, final Key key) {
+
+    long nv = 0;
+    long dv = 1;
+    long snv = 1;
+    long sdv = 0;
+
+    for (int i = from; i < to; i++) {
+
+      if (overflows(snv, path[i])) {
+        return wide(path, i, to, nv, dv, snv, sdv, key);
+      }
+
+      long cnv = nv + path[i] * snv;
+      long cdv = dv + path[i] * sdv;
+
+      snv = cnv + snv;
+      sdv = cdv + sdv;
+      nv = cnv;
+      dv = cdv;
+    }
+
+    return key.set(nv, dv, snv, sdv);
+  }
+
+  private static Key wide(
+          final int[] path, final int from, final int to,
+          final long nv, final long dv, final long snv, final long sdv,
+          final Key key) {
+
+    BigInteger bnv = BigInteger.valueOf(nv);
+    BigInteger bdv = BigInteger.valueOf(dv);
+    BigInteger bsnv = BigInteger.valueOf(snv);
+    BigInteger bsdv = BigInteger.valueOf(sdv);
+
+    for (int i = from; i < to; i++) {
+
+      BigInteger c = BigInteger.valueOf(path[i]);
+
+      bnv = bnv.add(c.multiply(bsnv));
+      bdv = bdv.add(c.multiply(bsdv));
+      bsnv = bnv.add(bsnv);
+      bsdv = bdv.add(bsdv);
+    }
+
+    return key.set(bnv, bdv, bsnv, bsdv);
+  }
+
+  /*
+   * nv, dv and sdv are never greater than snv, so if c * snv fits in 61 bits then
+   * every value of the child and its sibling, at most (c + 2) * snv, fits in a long.
+   */
+  private static boolean overflows(final long snv, final int c) {
+
+    return Long.numberOfLeadingZeros(snv) + Integer.numberOfLeadingZeros(c) < 35;
+  }
+
+  public static int ordinal(final Key key) {
+
+    if (!key.isWide()) {
+      return (int) (key.getNv() / (key.getSnv() - key.getNv()));
+    }
+
+    return key.getBigNv().divide(key.getBigSnv().subtract(key.getBigNv())).intValueExact();
+  }
+
+  public static boolean isRoot(final Key key) {
+
+    return !key.isWide() && 0 == key.getNv();
+  }
+
+  /**
+   * The parent of child c of a node with key nv/dv, snv/sdv is keyed by
+   * (nv - c * (snv - nv)) / (dv - c * (sdv - dv)), (snv - nv) / (sdv - dv), and
+   * c is nv / (snv - nv) because a parent's nv is always less than its snv.
+   */
+  public static Key parent(final Key key, final Key parent) {
+
+    if (isRoot(key)) {
+      throw new IllegalArgumentException("root has no parent");
+    }
+
+    if (!key.isWide()) {
+
+      long psnv = key.getSnv() - key.getNv();
+      long psdv = key.getSdv() - key.getDv();
+      long c = key.getNv() / psnv;
+
+      return parent.set(key.getNv() - c * psnv, key.getDv() - c * psdv, psnv, psdv);
+    }
+
+    BigInteger psnv = key.getBigSnv().subtract(key.getBigNv());
+    BigInteger psdv = key.getBigSdv().subtract(key.getBigDv());
+    BigInteger c = key.getBigNv().divide(psnv);
+
+    return parent.set(
+            key.getBigNv().subtract(c.multiply(psnv)), key.getBigDv().subtract(c.multiply(psdv)),
+            psnv, psdv);
+  }
+
+  public static int depth(final Key key) {
+
+    int depth = 0;
+
+    for (Key k = new Key().set(key); !isRoot(k); parent(k, k)) {
+      depth++;
+    }
+
+    return depth;
+  }
+
+  public static int[] path(final Key key) {
+
+    if (key.isWide()) {
+      return Fraction.continued(key.getBigNv(), key.getBigDv());
+    }
+
+    return Fraction.continued(key.getNv(), key.getDv());
+  }
+
+  public static int compare(final Key a, final Key b) {
+
+    if (a.isWide() || b.isWide()) {
+      return compare(a.getBigNv(), a.getBigDv(), b.getBigNv(), b.getBigDv());
+    }
+
+    return compare(a.getNv(), a.getDv(), b.getNv(), b.getDv());
+  }
+
+  /**
+   * True if a is a proper descendant of b, that is if a's key lies strictly
+   * inside the interval from b's key to b's next sibling's key.
+   */
+  public static boolean isDescendant(final Key a, final Key b) {
+
+    if (a.isWide() || b.isWide()) {
+      return compare(b.getBigNv(), b.getBigDv(), a.getBigNv(), a.getBigDv()) < 0
+              && compare(a.getBigNv(), a.getBigDv(), b.getBigSnv(), b.getBigSdv()) < 0;
+    }
+
+    return compare(b.getNv(), b.getDv(), a.getNv(), a.getDv()) < 0
+            && compare(a.getNv(), a.getDv(), b.getSnv(), b.getSdv()) < 0;
+  }
+
+  public static Key commonAncestor(final Key a, final Key b, final Key ancestor) {
+
+    int[] pa = path(a);
+    int[] pb = path(b);
+
+    int length = 0;
+    while (length < pa.length && length < pb.length && pa[length] == pb[length]) {
+      length++;
+    }
+
+    return key(pa, 0, length, ancestor);
+  }
+
+  private static int compare(final long n1, final long d1, final long n2, final long d2) {
+
+    if (bitLength(n1) + bitLength(d2) > Long.SIZE - 1 || bitLength(n2) + bitLength(d1) > Long.SIZE - 1) {
+      return compare(BigInteger.valueOf(n1), BigInteger.valueOf(d1), BigInteger.valueOf(n2), BigInteger.valueOf(d2));
+    }
+
+    return Long.compare(n1 * d2, n2 * d1);
+  }
+
+  private static int compare(final BigInteger n1, final BigInteger d1, final BigInteger n2, final BigInteger d2) {
+
+    return n1.multiply(d2).compareTo(n2.multiply(d1));
+  }
+
+  private static int bitLength(final long value) {
+
+    return Long.SIZE - Long.numberOfLeadingZeros(value);
+  }
+
+  public static Key child(final Key parent, final int c, final Key key) {
+
+    if (!parent.isWide() && !overflows(parent.getSnv(), c)) {
+
+      long nv = parent.getNv() + c * parent.getSnv();
+      long dv = parent.getDv() + c * parent.getSdv();
+
+      return key.set(nv, dv, nv + parent.getSnv(), dv + parent.getSdv());
+    }
+
+    BigInteger bc = BigInteger.valueOf(c);
+    BigInteger nv = parent.getBigNv().add(bc.multiply(parent.getBigSnv()));
+    BigInteger dv = parent.getBigDv().add(bc.multiply(parent.getBigSdv()));
+
+    return key.set(nv, dv, nv.add(parent.getBigSnv()), dv.add(parent.getBigSdv()));
+  }
+
+  public static Key moveSubtree(final Key p0, final int m, final Key p1, final int n, final Key key, final Key moved) {
+
+    return new Transform(p0, m, p1, n).apply(key, moved);
+  }
+}
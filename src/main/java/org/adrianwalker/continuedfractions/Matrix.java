@@ -1,34 +1,47 @@
 package org.adrianwalker.continuedfractions;
 
+import static java.lang.Math.addExact;
+import static java.lang.Math.multiplyExact;
+
 public final class Matrix {
 
   private Matrix() {
   }
 
-  public static int[][] matrix(
-          final int M00, final int M01,
-          final int M10, final int M11) {
+  public static long[][] matrix(
+          final long M00, final long M01,
+          final long M10, final long M11) {
 
-    return new int[][]{{M00, M01}, {M10, M11}};
+    return new long[][]{{M00, M01}, {M10, M11}};
   }
 
-  public static int[][] multiply(final int[][] M1, final int[][] M2) {
+  public static long[][] multiply(final long[][] M1, final long[][] M2) {
 
     return matrix(
-            M1[0][0] * M2[0][0] + M1[0][1] * M2[1][0],
-            M1[0][0] * M2[0][1] + M1[0][1] * M2[1][1],
-            M1[1][0] * M2[0][0] + M1[1][1] * M2[1][0],
-            M1[1][0] * M2[0][1] + M1[1][1] * M2[1][1]
+            addExact(multiplyExact(M1[0][0], M2[0][0]), multiplyExact(M1[0][1], M2[1][0])),
+            addExact(multiplyExact(M1[0][0], M2[0][1]), multiplyExact(M1[0][1], M2[1][1])),
+            addExact(multiplyExact(M1[1][0], M2[0][0]), multiplyExact(M1[1][1], M2[1][0])),
+            addExact(multiplyExact(M1[1][0], M2[0][1]), multiplyExact(M1[1][1], M2[1][1]))
     );
   }
 
-  public static int[][] invert(final int[][] M) {
+  public static long[][] invert(final long[][] M) {
 
     return matrix(-M[1][1], M[0][1], M[1][0], -M[0][0]);
   }
 
-  public static int[][] moveSubtree(final int[][] p0, final int m, final int[][] p1, int n, final int[][] M) {
+  public static long[][] moveSubtree(final long[][] p0, final int m, final long[][] p1, int n, final long[][] M) {
+
+    return matrix(Keys.moveSubtree(key(p0), m, key(p1), n, key(M), new Key()));
+  }
+
+  public static long[][] matrix(final Key key) {
+
+    return matrix(key.getNv(), key.getSnv(), key.getDv(), key.getSdv());
+  }
+
+  public static Key key(final long[][] M) {
 
-    return multiply(multiply(multiply(p1, matrix(1, 0, m - n, 1)), invert(p0)), M);
+    return new Key(M[0][0], M[1][0], M[0][1], M[1][1]);
   }
 }
@@ -0,0 +1,143 @@
+package org.adrianwalker.continuedfractions;
+
+import java.math.BigInteger;
+import static java.lang.Math.abs;
+import static java.lang.Math.addExact;
+import static java.lang.Math.multiplyExact;
+import static java.lang.Math.subtractExact;
+
+/**
+ * The matrix p1 * [[1, 0], [m - n, 1]] * inverse(p0), which moves the subtree of
+ * child n of p0 to child m of p1. It is the same for every node in the subtree,
+ * so it is computed once and applied to each node's key.
+ */
+public final class Transform {
+
+  private static final int PRODUCT_BITS = 62;
+
+  private final long c00;
+  private final long c01;
+  private final long c10;
+  private final long c11;
+  private final int bits;
+  private final BigInteger[] wide;
+
+  public Transform(final Key p0, final int m, final Key p1, final int n) {
+
+    long[] c = null;
+
+    if (!p0.isWide() && !p1.isWide()) {
+      try {
+        long k = subtractExact((long) m, n);
+
+        long a00 = addExact(p1.getNv(), multiplyExact(p1.getSnv(), k));
+        long a01 = p1.getSnv();
+        long a10 = addExact(p1.getDv(), multiplyExact(p1.getSdv(), k));
+        long a11 = p1.getSdv();
+
+        c = new long[]{
+          subtractExact(multiplyExact(a01, p0.getDv()), multiplyExact(a00, p0.getSdv())),
+          subtractExact(multiplyExact(a00, p0.getSnv()), multiplyExact(a01, p0.getNv())),
+          subtractExact(multiplyExact(a11, p0.getDv()), multiplyExact(a10, p0.getSdv())),
+          subtractExact(multiplyExact(a10, p0.getSnv()), multiplyExact(a11, p0.getNv()))
+        };
+      } catch (final ArithmeticException ae) {
+      }
+    }
+
+    if (null != c) {
+
+      this.c00 = c[0];
+      this.c01 = c[1];
+      this.c10 = c[2];
+      this.c11 = c[3];
+      this.bits = bitLength(abs(c00) | abs(c01) | abs(c10) | abs(c11));
+      this.wide = null;
+
+    } else {
+
+      BigInteger k = BigInteger.valueOf((long) m - n);
+
+      BigInteger a00 = p1.getBigNv().add(p1.getBigSnv().multiply(k));
+      BigInteger a01 = p1.getBigSnv();
+      BigInteger a10 = p1.getBigDv().add(p1.getBigSdv().multiply(k));
+      BigInteger a11 = p1.getBigSdv();
+
+      this.c00 = 0;
+      this.c01 = 0;
+      this.c10 = 0;
+      this.c11 = 0;
+      this.bits = Long.SIZE;
+      this.wide = new BigInteger[]{
+        a01.multiply(p0.getBigDv()).subtract(a00.multiply(p0.getBigSdv())),
+        a00.multiply(p0.getBigSnv()).subtract(a01.multiply(p0.getBigNv())),
+        a11.multiply(p0.getBigDv()).subtract(a10.multiply(p0.getBigSdv())),
+        a10.multiply(p0.getBigSnv()).subtract(a11.multiply(p0.getBigNv()))
+      };
+    }
+  }
+
+  /**
+   * Sets moved to this transform times the matrix [[nv, snv], [dv, sdv]] of key.
+   * key and moved may be the same holder. No objects are allocated unless the
+   * result could overflow a long.
+   */
+  public Key apply(final Key key, final Key moved) {
+
+    if (null == wide && !key.isWide()) {
+
+      long nv = key.getNv();
+      long dv = key.getDv();
+      long snv = key.getSnv();
+      long sdv = key.getSdv();
+
+      if (bits + bitLength(nv | dv | snv | sdv) <= PRODUCT_BITS) {
+
+        return moved.set(
+                c00 * nv + c01 * dv,
+                c10 * nv + c11 * dv,
+                c00 * snv + c01 * sdv,
+                c10 * snv + c11 * sdv);
+      }
+    }
+
+    BigInteger b00 = null == wide ? BigInteger.valueOf(c00) : wide[0];
+    BigInteger b01 = null == wide ? BigInteger.valueOf(c01) : wide[1];
+    BigInteger b10 = null == wide ? BigInteger.valueOf(c10) : wide[2];
+    BigInteger b11 = null == wide ? BigInteger.valueOf(c11) : wide[3];
+
+    BigInteger nv = key.getBigNv();
+    BigInteger dv = key.getBigDv();
+    BigInteger snv = key.getBigSnv();
+    BigInteger sdv = key.getBigSdv();
+
+    return moved.set(
+            b00.multiply(nv).add(b01.multiply(dv)),
+            b10.multiply(nv).add(b11.multiply(dv)),
+            b00.multiply(snv).add(b01.multiply(sdv)),
+            b10.multiply(snv).add(b11.multiply(sdv)));
+  }
+
+  /**
+   * Returns the coefficients [c00, c01, c10, c11] of this transform, for
+   * applying it elsewhere, such as in SQL.
+   */
+  public BigInteger[] getCoefficients() {
+
+    if (null != wide) {
+      return wide.clone();
+    }
+
+    return new BigInteger[]{
+      BigInteger.valueOf(c00),
+      BigInteger.valueOf(c01),
+      BigInteger.valueOf(c10),
+      BigInteger.valueOf(c11)
+    };
+  }
+
+  private static int bitLength(final long value) {
+
+    return Long.SIZE - Long.numberOfLeadingZeros(value);
+  }
+}
@@ -0,0 +1,102 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read only seekable channel over inline content.
+ */
+final class ByteArrayChannel implements SeekableByteChannel {
+
+  private final byte[] bytes;
+  private long position;
+  private boolean open = true;
+
+  ByteArrayChannel(final byte[] bytes) {
+
+    this.bytes = bytes;
+  }
+
+  @Override
+  public int read(final ByteBuffer dst) throws IOException {
+
+    ensureOpen();
+
+    if (position >= bytes.length) {
+      return dst.hasRemaining() ? -1 : 0;
+    }
+
+    int n = Math.min(dst.remaining(), bytes.length - (int) position);
+    dst.put(bytes, (int) position, n);
+    position += n;
+
+    return n;
+  }
+
+  @Override
+  public int write(final ByteBuffer src) throws IOException {
+
+    ensureOpen();
+
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public long position() throws IOException {
+
+    ensureOpen();
+
+    return position;
+  }
+
+  @Override
+  public SeekableByteChannel position(final long newPosition) throws IOException {
+
+    ensureOpen();
+
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("negative position: " + newPosition);
+    }
+
+    position = newPosition;
+
+    return this;
+  }
+
+  @Override
+  public long size() throws IOException {
+
+    ensureOpen();
+
+    return bytes.length;
+  }
+
+  @Override
+  public SeekableByteChannel truncate(final long size) throws IOException {
+
+    ensureOpen();
+
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() {
+
+    open = false;
+  }
+
+  private void ensureOpen() throws ClosedChannelException {
+
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+  }
+}
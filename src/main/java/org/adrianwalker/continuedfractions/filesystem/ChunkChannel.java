@@ -0,0 +1,128 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Read only seekable channel over chunked content. The chunks' cumulative
+ * lengths map a position to a chunk and an offset into it, and the last
+ * chunk fetched is kept, so sequential reads fetch each chunk once.
+ */
+final class ChunkChannel implements SeekableByteChannel {
+
+  private final ChunkStore chunks;
+  private final long content;
+  private final long[] ends;
+  private long position;
+  private int seq = -1;
+  private byte[] chunk;
+  private boolean open = true;
+
+  ChunkChannel(final ChunkStore chunks, final long content, final long[] ends) {
+
+    this.chunks = chunks;
+    this.content = content;
+    this.ends = ends;
+  }
+
+  @Override
+  public int read(final ByteBuffer dst) throws IOException {
+
+    ensureOpen();
+
+    if (position >= size()) {
+      return dst.hasRemaining() ? -1 : 0;
+    }
+
+    int i = Arrays.binarySearch(ends, position);
+    i = i < 0 ? -i - 1 : i + 1;
+
+    if (i != seq) {
+
+      try {
+        chunk = chunks.read(content, i);
+      } catch (final SQLException sqle) {
+        throw new IOException(sqle);
+      }
+
+      seq = i;
+    }
+
+    int offset = (int) (position - (0 == i ? 0 : ends[i - 1]));
+    int n = Math.min(dst.remaining(), chunk.length - offset);
+    dst.put(chunk, offset, n);
+    position += n;
+
+    return n;
+  }
+
+  @Override
+  public int write(final ByteBuffer src) throws IOException {
+
+    ensureOpen();
+
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public long position() throws IOException {
+
+    ensureOpen();
+
+    return position;
+  }
+
+  @Override
+  public SeekableByteChannel position(final long newPosition) throws IOException {
+
+    ensureOpen();
+
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("negative position: " + newPosition);
+    }
+
+    position = newPosition;
+
+    return this;
+  }
+
+  @Override
+  public long size() throws IOException {
+
+    ensureOpen();
+
+    return 0 == ends.length ? 0 : ends[ends.length - 1];
+  }
+
+  @Override
+  public SeekableByteChannel truncate(final long size) throws IOException {
+
+    ensureOpen();
+
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() {
+
+    open = false;
+    chunk = null;
+  }
+
+  private void ensureOpen() throws ClosedChannelException {
+
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+  }
+}
@@ -0,0 +1,377 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Content addressed storage of content as fixed size chunks named by their
+ * SHA-256 hash. Each distinct chunk is stored once with a count of the
+ * manifest rows referring to it, and a content's manifest lists its chunks in
+ * order under the content's oid, so content is shared and forked like large
+ * object content. Writing uploads only the chunks not already stored, so
+ * rewriting a file with one region changed uploads the chunks in that region.
+ * Chunked content's large object is kept empty. Statements are prepared
+ * through the DAO's statement cache, except the one streaming chunks, which
+ * stays open until its stream is closed.
+ */
+final class ChunkStore {
+
+  private static final String READ
+          = "select c.data "
+          + "from manifests m "
+          + "join chunks c on c.hash = m.hash "
+          + "where m.content = ?::oid "
+          + "order by m.seq";
+  private static final String SIZE
+          = "select coalesce(sum(length(c.data)), 0), count(*) "
+          + "from manifests m "
+          + "join chunks c on c.hash = m.hash "
+          + "where m.content = ?::oid";
+  private static final String LENGTHS
+          = "select length(c.data) "
+          + "from manifests m "
+          + "join chunks c on c.hash = m.hash "
+          + "where m.content = ?::oid "
+          + "order by m.seq";
+  private static final String READ_CHUNK
+          = "select c.data "
+          + "from manifests m "
+          + "join chunks c on c.hash = m.hash "
+          + "where m.content = ?::oid "
+          + "and m.seq = ?";
+  private static final String REFERENCE_CHUNK = "update chunks set refs = refs + 1 where hash = ?";
+  private static final String WRITE_CHUNK
+          = "insert into chunks (hash, data, refs) values (?, ?, 1) "
+          + "on conflict (hash) do update set refs = chunks.refs + 1";
+  private static final String RELEASE_CHUNKS = "select files_release_chunks(?::oid)";
+  private static final String WRITE_MANIFEST = "insert into manifests (content, seq, hash) values (?::oid, ?, ?)";
+  private static final String ALGORITHM = "SHA-256";
+  private static final int FETCH_SIZE = 16;
+  private static final int BATCH_SIZE = 64;
+
+  private final FilesDAO dao;
+  private final Connection connection;
+
+  ChunkStore(final FilesDAO dao, final Connection connection) {
+
+    this.dao = dao;
+    this.connection = connection;
+  }
+
+  /**
+   * Returns the size of chunked content, or -1 if the content has no
+   * manifest.
+   */
+  long size(final long content) throws SQLException {
+
+    PreparedStatement size = dao.prepareStatement(SIZE);
+    size.setLong(1, content);
+
+    try (ResultSet rs = size.executeQuery()) {
+      rs.next();
+      return 0 == rs.getLong(2) ? -1 : rs.getLong(1);
+    }
+  }
+
+  /**
+   * Returns the cumulative lengths of content's chunks in order, so chunk i
+   * ends at the ith length, or null if the content has no manifest.
+   */
+  long[] ends(final long content) throws SQLException {
+
+    PreparedStatement lengths = dao.prepareStatement(LENGTHS);
+    lengths.setLong(1, content);
+
+    long[] ends = new long[16];
+    int n = 0;
+
+    try (ResultSet rs = lengths.executeQuery()) {
+
+      while (rs.next()) {
+
+        if (n == ends.length) {
+          ends = Arrays.copyOf(ends, 2 * n);
+        }
+
+        ends[n] = (0 == n ? 0 : ends[n - 1]) + rs.getInt(1);
+        n++;
+      }
+    }
+
+    return 0 == n ? null : Arrays.copyOf(ends, n);
+  }
+
+  /**
+   * Returns chunk seq of content.
+   */
+  byte[] read(final long content, final int seq) throws SQLException {
+
+    PreparedStatement read = dao.prepareStatement(READ_CHUNK);
+    read.setLong(1, content);
+    read.setInt(2, seq);
+
+    try (ResultSet rs = read.executeQuery()) {
+
+      if (!rs.next()) {
+        throw new SQLException("no chunk " + seq + " of content " + content);
+      }
+
+      return rs.getBytes(1);
+    }
+  }
+
+  /**
+   * Opens a stream over the chunks of content, fetched a few at a time, or
+   * returns null if the content has no manifest.
+   */
+  InputStream getInputStream(final long content) throws SQLException {
+
+    final PreparedStatement read = connection.prepareStatement(READ);
+    final ResultSet rs;
+
+    try {
+
+      read.setFetchSize(FETCH_SIZE);
+      read.setLong(1, content);
+      rs = read.executeQuery();
+
+      if (!rs.next()) {
+        read.close();
+        return null;
+      }
+
+    } catch (final SQLException | RuntimeException ex) {
+      read.close();
+      throw ex;
+    }
+
+    return new InputStream() {
+
+      private byte[] chunk = rs.getBytes(1);
+      private int position;
+
+      @Override
+      public int read() throws IOException {
+
+        byte[] b = new byte[1];
+
+        return -1 == read(b, 0, 1) ? -1 : b[0] & 0xFF;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len) throws IOException {
+
+        if (0 == len) {
+          return 0;
+        }
+
+        try {
+
+          while (null != chunk && position == chunk.length) {
+            chunk = rs.next() ? rs.getBytes(1) : null;
+            position = 0;
+          }
+
+        } catch (final SQLException sqle) {
+          throw new IOException(sqle);
+        }
+
+        if (null == chunk) {
+          return -1;
+        }
+
+        int n = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk, position, b, off, n);
+        position += n;
+
+        return n;
+      }
+
+      @Override
+      public void close() throws IOException {
+
+        try {
+          read.close();
+        } catch (final SQLException sqle) {
+          throw new IOException(sqle);
+        }
+      }
+    };
+  }
+
+  /**
+   * Drops the content's manifest, releasing its chunks, for when the content
+   * is written to its large object instead.
+   */
+  void release(final long content) throws SQLException {
+
+    PreparedStatement release = dao.prepareStatement(RELEASE_CHUNKS);
+    release.setLong(1, content);
+    release.executeQuery().close();
+  }
+
+  /**
+   * Opens a stream that replaces the content's manifest when it is closed.
+   * Chunks are hashed as they fill and uploaded in batches, each chunk
+   * already stored only having its reference count incremented.
+   */
+  OutputStream getOutputStream(final long content, final int chunkSize) {
+
+    final MessageDigest digest = digest();
+
+    return new OutputStream() {
+
+      private final byte[] chunk = new byte[chunkSize];
+      private final List<byte[]> hashes = new ArrayList<>();
+      private final List<byte[]> pending = new ArrayList<>();
+      private int length;
+      private boolean closed;
+
+      @Override
+      public void write(final int b) throws IOException {
+
+        write(new byte[]{(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(final byte[] b, final int off, final int len) throws IOException {
+
+        int written = 0;
+
+        while (written < len) {
+
+          int n = Math.min(len - written, chunk.length - length);
+          System.arraycopy(b, off + written, chunk, length, n);
+          length += n;
+          written += n;
+
+          if (length == chunk.length) {
+            chunk();
+          }
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+
+        if (closed) {
+          return;
+        }
+
+        closed = true;
+
+        if (length > 0) {
+          chunk();
+        }
+
+        try {
+          upload();
+          manifest();
+        } catch (final SQLException sqle) {
+          throw new IOException(sqle);
+        }
+      }
+
+      private void chunk() throws IOException {
+
+        byte[] data = new byte[length];
+        System.arraycopy(chunk, 0, data, 0, length);
+        length = 0;
+
+        hashes.add(digest.digest(data));
+        pending.add(data);
+
+        if (pending.size() == BATCH_SIZE) {
+          try {
+            upload();
+          } catch (final SQLException sqle) {
+            throw new IOException(sqle);
+          }
+        }
+      }
+
+      private void upload() throws SQLException {
+
+        if (pending.isEmpty()) {
+          return;
+        }
+
+        int first = hashes.size() - pending.size();
+
+        PreparedStatement reference = dao.prepareStatement(REFERENCE_CHUNK);
+        reference.clearBatch();
+
+        for (int i = 0; i < pending.size(); i++) {
+          reference.setBytes(1, hashes.get(first + i));
+          reference.addBatch();
+        }
+
+        int[] referenced = reference.executeBatch();
+
+        PreparedStatement write = dao.prepareStatement(WRITE_CHUNK);
+        write.clearBatch();
+
+        int written = 0;
+
+        for (int i = 0; i < pending.size(); i++) {
+
+          if (0 == referenced[i]) {
+            write.setBytes(1, hashes.get(first + i));
+            write.setBytes(2, pending.get(i));
+            write.addBatch();
+            written++;
+          }
+        }
+
+        if (written > 0) {
+          write.executeBatch();
+        }
+
+        pending.clear();
+      }
+
+      private void manifest() throws SQLException {
+
+        release(content);
+
+        PreparedStatement write = dao.prepareStatement(WRITE_MANIFEST);
+        write.clearBatch();
+
+        for (int i = 0; i < hashes.size(); i++) {
+
+          write.setLong(1, content);
+          write.setInt(2, i);
+          write.setBytes(3, hashes.get(i));
+          write.addBatch();
+
+          if ((i + 1) % BATCH_SIZE == 0) {
+            write.executeBatch();
+          }
+        }
+
+        if (hashes.size() % BATCH_SIZE != 0) {
+          write.executeBatch();
+        }
+      }
+    };
+  }
+
+  private static MessageDigest digest() {
+
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (final NoSuchAlgorithmException nsae) {
+      throw new IllegalStateException(nsae);
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.sql.SQLException;
+
+/**
+ * Renumbers the children of a directory to dense ordinals. Deleted and moved
+ * children leave gaps in their parent's ordinals which new children never
+ * reuse, and the keys of a child grow with its ordinal, so compacting a
+ * directory with a lot of churn keeps its keys small. Children are renumbered
+ * in batches, each batch in its own transaction followed by a pause, so
+ * compaction can run alongside other writers.
+ */
+public final class Compactor {
+
+  /**
+   * The result of compacting a directory, in terms of its last child before
+   * and after.
+   */
+  public static final class Compaction {
+
+    private final long renumbered;
+    private final int lastBefore;
+    private final int lastAfter;
+    private final int bitsBefore;
+    private final int bitsAfter;
+
+    Compaction(
+            final long renumbered,
+            final int lastBefore, final int lastAfter,
+            final int bitsBefore, final int bitsAfter) {
+
+      this.renumbered = renumbered;
+      this.lastBefore = lastBefore;
+      this.lastAfter = lastAfter;
+      this.bitsBefore = bitsBefore;
+      this.bitsAfter = bitsAfter;
+    }
+
+    public long getRenumbered() {
+      return renumbered;
+    }
+
+    public int getLastBefore() {
+      return lastBefore;
+    }
+
+    public int getLastAfter() {
+      return lastAfter;
+    }
+
+    /**
+     * Returns how far the last child's ordinal dropped. Without an ordinal
+     * allocator this is also how many ordinals the next child no longer
+     * skips. With one, new children still follow the ordinals reserved.
+     */
+    public int getOrdinalsSaved() {
+      return lastBefore - lastAfter;
+    }
+
+    /**
+     * Returns the number of bits saved from the last child's key, the largest
+     * of its siblings' keys.
+     */
+    public int getBitsSaved() {
+      return bitsBefore - bitsAfter;
+    }
+
+    @Override
+    public String toString() {
+
+      return "renumbered " + renumbered
+              + ", last ordinal " + lastBefore + " -> " + lastAfter
+              + ", key bits " + bitsBefore + " -> " + bitsAfter;
+    }
+  }
+
+  private final FilesDAOPool pool;
+  private final int batchSize;
+  private final long pause;
+
+  /**
+   * Creates a compactor renumbering up to batchSize children per
+   * transaction, pausing for pause milliseconds after each.
+   */
+  public Compactor(final FilesDAOPool pool, final int batchSize, final long pause) {
+
+    this.pool = pool;
+    this.batchSize = batchSize;
+    this.pause = pause;
+  }
+
+  /**
+   * Renumbers the children of parent to dense ordinals.
+   */
+  public Compaction compact(final int... parent) throws SQLException, InterruptedException {
+
+    File before = lastChild(parent);
+    long renumbered = 0;
+    int n;
+
+    do {
+      n = compact(parent, batchSize);
+      renumbered += n;
+      pause();
+    } while (n == batchSize);
+
+    File after = lastChild(parent);
+
+    return new Compaction(renumbered, ordinal(before), ordinal(after), bits(before), bits(after));
+  }
+
+  private File lastChild(final int[] parent) throws SQLException {
+
+    FilesDAO dao = pool.borrow();
+    File file;
+
+    try {
+      file = dao.lastChild(parent);
+    } catch (final SQLException | RuntimeException ex) {
+      pool.release(dao, false);
+      throw ex;
+    }
+
+    pool.release(dao, true);
+
+    return file;
+  }
+
+  private int compact(final int[] parent, final int limit) throws SQLException {
+
+    FilesDAO dao = pool.borrow();
+    int n;
+
+    try {
+      n = dao.compact(parent, limit);
+    } catch (final SQLException | RuntimeException ex) {
+      pool.release(dao, false);
+      throw ex;
+    }
+
+    pool.release(dao, true);
+
+    return n;
+  }
+
+  private void pause() throws InterruptedException {
+
+    if (pause > 0) {
+      Thread.sleep(pause);
+    }
+  }
+
+  private static int ordinal(final File file) {
+
+    if (null == file) {
+      return 0;
+    }
+
+    int[] path = file.getPath();
+
+    return path[path.length - 1];
+  }
+
+  private static int bits(final File file) {
+
+    if (null == file) {
+      return 0;
+    }
+
+    return file.getSnv().bitLength() + file.getSdv().bitLength();
+  }
+}
@@ -0,0 +1,202 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import static org.adrianwalker.continuedfractions.Fraction.binary;
+
+/**
+ * Exports a subtree as a tar stream. A reader thread pages through the
+ * subtree in id order in one repeatable read transaction, reading content
+ * into a bounded queue of chunks that the calling thread writes out, so
+ * memory use is bounded by the page size and queue length. Entries are named
+ * relative to the subtree, files with children are written as directories,
+ * or as files followed by their children if they have content, which the
+ * Importer puts back under the file.
+ */
+public final class Exporter {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final Object END = new Object();
+
+  private final FilesDAOPool pool;
+  private final int pageSize;
+  private final int queueLength;
+
+  public Exporter(final FilesDAOPool pool, final int pageSize, final int queueLength) {
+
+    this.pool = pool;
+    this.pageSize = pageSize;
+    this.queueLength = queueLength;
+  }
+
+  /**
+   * Writes the subtree at path to out, leaving out open, and returns the
+   * number of entries written.
+   */
+  public long export(final OutputStream out, final int... path) throws SQLException, IOException {
+
+    final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(queueLength);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    executor.submit(new Runnable() {
+
+      @Override
+      public void run() {
+        read(queue, path);
+      }
+    });
+
+    TarOutputStream tar = new TarOutputStream(out);
+    long entries = 0;
+
+    try {
+
+      Object item;
+
+      while (END != (item = queue.take())) {
+
+        if (item instanceof TarEntry) {
+          tar.putNextEntry((TarEntry) item);
+          entries++;
+        } else if (item instanceof byte[]) {
+          tar.write((byte[]) item);
+        } else if (item instanceof SQLException) {
+          throw (SQLException) item;
+        } else if (item instanceof IOException) {
+          throw (IOException) item;
+        } else if (item instanceof Error) {
+          throw (Error) item;
+        } else {
+          throw (RuntimeException) item;
+        }
+      }
+
+      tar.finish();
+
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IOException(ie);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    return entries;
+  }
+
+  private void read(final BlockingQueue<Object> queue, final int[] path) {
+
+    try {
+
+      FilesDAO dao = pool.borrow();
+
+      try {
+
+        dao.repeatableRead();
+
+        List<String> names = new ArrayList<>();
+        byte[] after = binary(path);
+        File pending = null;
+        File[] page;
+
+        do {
+
+          page = dao.tree(path, after, pageSize);
+
+          for (File file : page) {
+
+            if (null != pending) {
+              read(queue, dao, names, path.length, pending, file.getLevel() > pending.getLevel());
+            }
+
+            pending = file;
+          }
+
+          if (page.length > 0) {
+            after = page[page.length - 1].getId();
+          }
+
+        } while (page.length == pageSize);
+
+        if (null != pending) {
+          read(queue, dao, names, path.length, pending, false);
+        }
+
+        dao.commit();
+
+      } catch (final SQLException | IOException | RuntimeException | Error | InterruptedException ex) {
+        pool.discard(dao);
+        throw ex;
+      }
+
+      pool.release(dao);
+      queue.put(END);
+
+    } catch (final SQLException | IOException | RuntimeException | Error ex) {
+      try {
+        queue.put(ex);
+      } catch (final InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void read(
+          final BlockingQueue<Object> queue, final FilesDAO dao,
+          final List<String> names, final int level,
+          final File file, final boolean directory) throws SQLException, IOException, InterruptedException {
+
+    int depth = file.getLevel() - level;
+
+    while (names.size() >= depth) {
+      names.remove(names.size() - 1);
+    }
+
+    names.add(file.getName());
+
+    StringBuilder name = new StringBuilder();
+    for (String n : names) {
+      name.append(name.length() > 0 ? FileSystem.SEPERATOR : "").append(n);
+    }
+
+    if (directory && 0 == file.getContent() && null == file.getData()) {
+      queue.put(new TarEntry(name.toString(), 0, true));
+      return;
+    }
+
+    queue.put(new TarEntry(name.toString(), dao.size(file), false));
+
+    try (InputStream content = dao.getInputStream(file)) {
+
+      byte[] b = new byte[CHUNK_SIZE];
+      int n;
+
+      while ((n = read(content, b)) > 0) {
+        queue.put(n == b.length ? b : Arrays.copyOf(b, n));
+        b = new byte[CHUNK_SIZE];
+      }
+    }
+  }
+
+  private static int read(final InputStream in, final byte[] b) throws IOException {
+
+    int n = 0;
+    int r;
+
+    while (n < b.length && (r = in.read(b, n, b.length - n)) > 0) {
+      n += r;
+    }
+
+    return n;
+  }
+}
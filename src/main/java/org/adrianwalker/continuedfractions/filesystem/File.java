@@ -1,23 +1,26 @@
 package org.adrianwalker.continuedfractions.filesystem;
 
 import java.io.Serializable;
-import java.math.BigDecimal;
+import java.math.BigInteger;
+import org.adrianwalker.continuedfractions.Fraction;
+import org.adrianwalker.continuedfractions.Key;
 
 public final class File implements Serializable {
 
-  private BigDecimal id;
-  private int nv;
-  private int dv;
-  private BigDecimal sid;
-  private int sdv;
-  private int snv;
+  private byte[] id;
+  private BigInteger nv;
+  private BigInteger dv;
+  private byte[] sid;
+  private BigInteger sdv;
+  private BigInteger snv;
   private int level;
   private String name;
   private long content;
+  private byte[] data;
 
   public File(
-          final BigDecimal id, final int nv, final int dv,
-          final BigDecimal sid, final int snv, final int sdv,
+          final byte[] id, final BigInteger nv, final BigInteger dv,
+          final byte[] sid, final BigInteger snv, final BigInteger sdv,
           final int level,
           final String name, final long content) {
 
@@ -32,54 +35,62 @@ public final class File implements Serializable {
     this.content = content;
   }
 
-  public BigDecimal getId() {
+  public byte[] getId() {
     return id;
   }
 
-  public void setId(final BigDecimal id) {
+  public void setId(final byte[] id) {
     this.id = id;
   }
 
-  public int getNv() {
+  public BigInteger getNv() {
     return nv;
   }
 
-  public void setNv(final int nv) {
+  public void setNv(final BigInteger nv) {
     this.nv = nv;
   }
 
-  public int getDv() {
+  public BigInteger getDv() {
     return dv;
   }
 
-  public void setDv(final int dv) {
+  public void setDv(final BigInteger dv) {
     this.dv = dv;
   }
 
-  public BigDecimal getSid() {
+  public byte[] getSid() {
     return sid;
   }
 
-  public void setSid(final BigDecimal sid) {
+  public void setSid(final byte[] sid) {
     this.sid = sid;
   }
 
-  public int getSdv() {
+  public BigInteger getSdv() {
     return sdv;
   }
 
-  public void setSdv(final int sdv) {
+  public void setSdv(final BigInteger sdv) {
     this.sdv = sdv;
   }
 
-  public int getSnv() {
+  public BigInteger getSnv() {
     return snv;
   }
 
-  public void setSnv(final int snv) {
+  public void setSnv(final BigInteger snv) {
     this.snv = snv;
   }
 
+  public Key getKey() {
+    return new Key(nv, dv, snv, sdv);
+  }
+
+  public int[] getPath() {
+    return Fraction.continued(id);
+  }
+
   public int getLevel() {
     return level;
   }
@@ -103,4 +114,15 @@ public final class File implements Serializable {
   public void setContent(long content) {
     this.content = content;
   }
+
+  /**
+   * Returns content stored inline, when there is no large object content.
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  public void setData(final byte[] data) {
+    this.data = data;
+  }
 }
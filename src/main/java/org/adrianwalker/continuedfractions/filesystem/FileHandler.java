@@ -0,0 +1,9 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+/**
+ * Receives files one at a time as they are read from a cursor.
+ */
+public interface FileHandler {
+
+  void handle(File file) throws FileSystemException;
+}
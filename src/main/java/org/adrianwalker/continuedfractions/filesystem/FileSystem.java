@@ -1,167 +1,542 @@
 package org.adrianwalker.continuedfractions.filesystem;
 
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.SQLException;
-import static org.adrianwalker.continuedfractions.filesystem.Path.range;
-
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * File system over a single FilesDAO, whose transactions are left to the
+ * owner of its connection, or over a FilesDAOPool, where each operation or
+ * unit of work runs in its own transaction on a borrowed DAO. Either is safe
+ * for concurrent use; a single DAO serializes operations.
+ */
 public final class FileSystem {
 
-  private static final String SEPERATOR = "/";
-  private static final String EMPTY_STRING = "";
+  static final String SEPERATOR = "/";
   private final FilesDAO dao;
+  private final FilesDAOPool pool;
   private final int[] rootPath;
+  private final ThreadLocal<FilesDAO> current = new ThreadLocal<>();
+
+  private interface Operation<T> {
+
+    T execute(FilesDAO dao) throws SQLException, IOException, FileSystemException;
+  }
 
   public FileSystem(final FilesDAO dao, final int... rootPath) throws FileSystemException {
 
+    this(dao, null, rootPath);
+  }
+
+  public FileSystem(final FilesDAOPool pool, final int... rootPath) throws FileSystemException {
+
+    this(null, pool, rootPath);
+  }
+
+  private FileSystem(final FilesDAO dao, final FilesDAOPool pool, final int... rootPath) throws FileSystemException {
+
     this.dao = dao;
+    this.pool = pool;
     this.rootPath = rootPath;
 
-    try {
-      if (null == dao.read(rootPath)) {
-        dao.write("", rootPath);
+    call(new Operation<Void>() {
+
+      @Override
+      public Void execute(final FilesDAO dao) throws SQLException {
+
+        if (null == dao.read(rootPath)) {
+          dao.write("", rootPath);
+        }
+
+        return null;
       }
-    } catch (final SQLException sqle) {
-      throw new FileSystemException(sqle);
-    }
+    });
   }
 
-  public int[] create(final String path) throws FileSystemException {
+  /**
+   * Runs work in one transaction, which operations on this file system made
+   * by work on the calling thread join. With a single FilesDAO the work holds
+   * the DAO but commits are left to the owner of its connection.
+   */
+  public <T> T execute(final UnitOfWork<T> work) throws FileSystemException {
+
+    if (null != current.get()) {
+      return work.execute();
+    }
+
+    if (null == pool) {
+
+      synchronized (dao) {
+
+        current.set(dao);
+
+        try {
+          return work.execute();
+        } finally {
+          current.remove();
+        }
+      }
+    }
+
+    FilesDAO borrowed = begin();
+    current.set(borrowed);
+
+    T result;
 
     try {
-      return path(path, true);
-    } catch (final SQLException sqle) {
-      throw new FileSystemException(sqle);
+      result = work.execute();
+    } catch (final FileSystemException | RuntimeException | Error ex) {
+      current.remove();
+      end(borrowed, false);
+      throw ex;
     }
+
+    current.remove();
+    end(borrowed, true);
+
+    return result;
+  }
+
+  public int[] create(final String path) throws FileSystemException {
+
+    return call(new Operation<int[]>() {
+
+      @Override
+      public int[] execute(final FilesDAO dao) throws SQLException {
+        return path(dao, path, true);
+      }
+    });
   }
 
   public File[] list(final String path) throws FileSystemException {
 
-    try {
-      return dao.children(path(path, false));
-    } catch (final SQLException sqle) {
-      throw new FileSystemException(sqle);
-    }
+    return call(new Operation<File[]>() {
+
+      @Override
+      public File[] execute(final FilesDAO dao) throws SQLException {
+        return dao.children(path(dao, path, false));
+      }
+    });
   }
 
   public File[] tree(final String path) throws FileSystemException {
 
-    try {
-      return dao.tree(path(path, false));
-    } catch (final SQLException sqle) {
-      throw new FileSystemException(sqle);
-    }
+    return call(new Operation<File[]>() {
+
+      @Override
+      public File[] execute(final FilesDAO dao) throws SQLException {
+        return dao.tree(path(dao, path, false));
+      }
+    });
+  }
+
+  /**
+   * Passes the files in path to handler as they are read, without holding
+   * them all in memory, returning the number of files.
+   */
+  public long list(final String path, final FileHandler handler) throws FileSystemException {
+
+    return call(new Operation<Long>() {
+
+      @Override
+      public Long execute(final FilesDAO dao) throws SQLException, FileSystemException {
+        return dao.children(handler, path(dao, path, false));
+      }
+    });
+  }
+
+  /**
+   * Passes the tree at path to handler as it is read, without holding it all
+   * in memory, returning the number of files.
+   */
+  public long tree(final String path, final FileHandler handler) throws FileSystemException {
+
+    return call(new Operation<Long>() {
+
+      @Override
+      public Long execute(final FilesDAO dao) throws SQLException, FileSystemException {
+        return dao.tree(handler, path(dao, path, false));
+      }
+    });
   }
 
   public void write(final String path, final String text) throws FileSystemException {
 
-    OutputStream out = getOutputStream(path);
+    call(new Operation<Void>() {
 
-    try {
-      Stream.fromString(text, out);
-    } catch (final IOException ioe) {
-      throw new FileSystemException(ioe);
-    }
+      @Override
+      public Void execute(final FilesDAO dao) throws SQLException, IOException {
+
+        Stream.fromString(text, dao.getOutputStream(file(dao, path, true)));
+
+        return null;
+      }
+    });
   }
 
+  /**
+   * Opens a stream on the file's content. From a FilesDAOPool outside a unit
+   * of work, the stream holds its DAO and transaction until it is closed.
+   */
   public OutputStream getOutputStream(final String path) throws FileSystemException {
 
+    Operation<OutputStream> open = new Operation<OutputStream>() {
+
+      @Override
+      public OutputStream execute(final FilesDAO dao) throws SQLException {
+        return dao.getOutputStream(file(dao, path, true));
+      }
+    };
+
+    if (null == pool || null != current.get()) {
+      return call(open);
+    }
+
+    final FilesDAO borrowed = begin();
     OutputStream out;
 
     try {
-      out = dao.getOutputStream(dao.read(path(path, true)).getContent());
-    } catch (final SQLException sqle) {
-      throw new FileSystemException(sqle);
+      out = run(open, borrowed);
+    } catch (final FileSystemException | RuntimeException ex) {
+      end(borrowed, false);
+      throw ex;
     }
 
-    return out;
+    return new FilterOutputStream(out) {
+
+      private boolean closed;
+
+      @Override
+      public void write(final byte[] b, final int off, final int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+
+        if (!closed) {
+          closed = true;
+          complete(borrowed, this.out);
+        }
+      }
+    };
   }
 
   public String read(final String path) throws FileSystemException {
 
-    InputStream in = getInputStream(path);
+    return call(new Operation<String>() {
 
-    if (null == in) {
-      return EMPTY_STRING;
-    }
+      @Override
+      public String execute(final FilesDAO dao) throws SQLException, IOException {
 
-    try {
-      return Stream.toString(in);
-    } catch (final IOException ioe) {
-      throw new FileSystemException(ioe);
-    }
+        return Stream.toString(dao.getInputStream(file(dao, path, false)));
+      }
+    });
   }
 
+  /**
+   * Opens a stream on the file's content. From a FilesDAOPool outside a unit
+   * of work, the stream holds its DAO and transaction until it is closed.
+   */
   public InputStream getInputStream(final String path) throws FileSystemException {
 
+    Operation<InputStream> open = new Operation<InputStream>() {
+
+      @Override
+      public InputStream execute(final FilesDAO dao) throws SQLException {
+        return dao.getInputStream(file(dao, path, false));
+      }
+    };
+
+    if (null == pool || null != current.get()) {
+      return call(open);
+    }
+
+    final FilesDAO borrowed = begin();
     InputStream in;
 
     try {
-      in = dao.getInputStream(dao.read(path(path, false)).getContent());
-    } catch (final SQLException sqle) {
-      throw new FileSystemException(sqle);
+      in = run(open, borrowed);
+    } catch (final FileSystemException | RuntimeException ex) {
+      end(borrowed, false);
+      throw ex;
     }
 
-    return in;
+    return new FilterInputStream(in) {
+
+      private boolean closed;
+
+      @Override
+      public void close() throws IOException {
+
+        if (!closed) {
+          closed = true;
+          complete(borrowed, this.in);
+        }
+      }
+    };
   }
 
-  public void delete(final String path) throws FileSystemException {
+  /**
+   * Opens a seekable channel on the file's content with StandardOpenOptions
+   * READ, WRITE, APPEND, CREATE, CREATE_NEW and TRUNCATE_EXISTING, reading
+   * by default. From a FilesDAOPool outside a unit of work, the channel holds
+   * its DAO and transaction until it is closed.
+   */
+  public SeekableByteChannel open(final String path, final OpenOption... options) throws FileSystemException {
+
+    final Set<OpenOption> set = new HashSet<>(Arrays.asList(options));
+
+    Operation<SeekableByteChannel> open = new Operation<SeekableByteChannel>() {
+
+      @Override
+      public SeekableByteChannel execute(final FilesDAO dao) throws SQLException, IOException, FileSystemException {
+
+        boolean createNew = set.contains(StandardOpenOption.CREATE_NEW);
+        boolean create = createNew || set.contains(StandardOpenOption.CREATE);
+        File file = file(dao, path, false);
+
+        if (null != file && createNew) {
+          throw new FileSystemException("file exists: " + path);
+        }
+
+        if (null == file && create) {
+          file = file(dao, path, true);
+        }
+
+        if (null == file) {
+          throw new FileSystemException("no such file: " + path);
+        }
+
+        return dao.getChannel(file, set);
+      }
+    };
+
+    if (null == pool || null != current.get()) {
+      return call(open);
+    }
+
+    final FilesDAO borrowed = begin();
+    final SeekableByteChannel channel;
 
     try {
-      dao.remove(path(path, false));
-    } catch (final SQLException sqle) {
-      throw new FileSystemException(sqle);
+      channel = run(open, borrowed);
+    } catch (final FileSystemException | RuntimeException ex) {
+      end(borrowed, false);
+      throw ex;
     }
+
+    return new SeekableByteChannel() {
+
+      @Override
+      public int read(final ByteBuffer dst) throws IOException {
+        return channel.read(dst);
+      }
+
+      @Override
+      public int write(final ByteBuffer src) throws IOException {
+        return channel.write(src);
+      }
+
+      @Override
+      public long position() throws IOException {
+        return channel.position();
+      }
+
+      @Override
+      public SeekableByteChannel position(final long newPosition) throws IOException {
+
+        channel.position(newPosition);
+
+        return this;
+      }
+
+      @Override
+      public long size() throws IOException {
+        return channel.size();
+      }
+
+      @Override
+      public SeekableByteChannel truncate(final long size) throws IOException {
+
+        channel.truncate(size);
+
+        return this;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return channel.isOpen();
+      }
+
+      @Override
+      public void close() throws IOException {
+
+        if (channel.isOpen()) {
+          complete(borrowed, channel);
+        }
+      }
+    };
+  }
+
+  public void delete(final String path) throws FileSystemException {
+
+    delete(path, false);
+  }
+
+  /**
+   * Deletes path, or with trash moves it to the trash, which writes one row
+   * and leaves its files and content for a Purger to reclaim.
+   */
+  public void delete(final String path, final boolean trash) throws FileSystemException {
+
+    call(new Operation<Integer>() {
+
+      @Override
+      public Integer execute(final FilesDAO dao) throws SQLException {
+
+        int[] p = path(dao, path, false);
+
+        return trash ? dao.trash(p) : dao.remove(p);
+      }
+    });
   }
 
   public void move(final String from, final String to) throws FileSystemException {
 
+    call(new Operation<Integer>() {
+
+      @Override
+      public Integer execute(final FilesDAO dao) throws SQLException {
+        return dao.move(path(dao, from, false), path(dao, to, true));
+      }
+    });
+  }
+
+  public void copy(final String from, final String to) throws FileSystemException {
+
+    call(new Operation<int[]>() {
+
+      @Override
+      public int[] execute(final FilesDAO dao) throws SQLException, IOException {
+        return dao.copy(path(dao, from, false), path(dao, to, true));
+      }
+    });
+  }
+
+  private <T> T call(final Operation<T> operation) throws FileSystemException {
+
+    return execute(new UnitOfWork<T>() {
+
+      @Override
+      public T execute() throws FileSystemException {
+        return run(operation, current.get());
+      }
+    });
+  }
+
+  private <T> T run(final Operation<T> operation, final FilesDAO dao) throws FileSystemException {
+
     try {
-      dao.move(path(from, false), path(to, true));
+      return operation.execute(dao);
     } catch (final SQLException | IOException ex) {
       throw new FileSystemException(ex);
     }
   }
 
-  public void copy(final String from, final String to) throws FileSystemException {
+  private FilesDAO begin() throws FileSystemException {
 
     try {
-      dao.copy(path(from, false), path(to, true));
-    } catch (final SQLException | IOException ex) {
-      throw new FileSystemException(ex);
+      return pool.borrow();
+    } catch (final SQLException sqle) {
+      throw new FileSystemException(sqle);
     }
   }
 
-  private int[] path(final String s, final boolean create) throws SQLException {
+  private void end(final FilesDAO borrowed, final boolean commit) throws FileSystemException {
 
-    String[] names = s.split(SEPERATOR);
-    int[] path = range(rootPath, 0, rootPath.length + (names.length > 0 ? names.length - 1 : 0));
+    try {
+      pool.release(borrowed, commit);
+    } catch (final SQLException sqle) {
+      throw new FileSystemException(sqle);
+    }
+  }
 
-    File f = dao.read(rootPath);
+  private void complete(final FilesDAO borrowed, final Closeable stream) throws IOException {
 
-    for (int level = 1; level < names.length; level++) {
+    try {
+      stream.close();
+    } catch (final IOException ioe) {
+      try {
+        end(borrowed, false);
+      } catch (final FileSystemException fse) {
+        ioe.addSuppressed(fse);
+      }
+      throw ioe;
+    }
 
-      File p = f;
+    try {
+      end(borrowed, true);
+    } catch (final FileSystemException fse) {
+      throw new IOException(fse);
+    }
+  }
 
-      f = dao.child(names[level], range(path, 0, level));
+  private int[] path(final FilesDAO dao, final String s, final boolean create) throws SQLException {
 
-      if (null != f) {
+    File f = file(dao, s, create);
 
-        path[level] = (f.getNv() - p.getNv()) / p.getSnv();
+    if (null == f) {
+      return Arrays.copyOf(rootPath, rootPath.length + names(s).length);
+    }
 
-      } else if (null == f && create) {
+    return f.getPath();
+  }
 
-        path[level] = 1;
-        File lc = dao.lastChild(range(path, 0, level));
-        if (null != lc) {
-          path[level] = (lc.getSnv() - p.getNv()) / p.getSnv();
-        }
+  private File file(final FilesDAO dao, final String s, final boolean create) throws SQLException {
 
-        f = dao.write(names[level], range(path, 0, level + 1));
-      }
+    String[] names = names(s);
+
+    if (0 == names.length) {
+      return dao.read(rootPath);
     }
 
-    return path;
+    File[] files = dao.resolve(names, rootPath);
+
+    if (files.length == names.length) {
+      return files[files.length - 1];
+    }
+
+    if (!create) {
+      return null;
+    }
+
+    int[] parent = files.length > 0 ? files[files.length - 1].getPath() : rootPath;
+    int[] path = Arrays.copyOf(parent, parent.length + names.length - files.length);
+    Arrays.fill(path, parent.length, path.length, 1);
+
+    path[parent.length] = dao.nextChild(parent);
+
+    files = dao.write(Arrays.copyOfRange(names, files.length, names.length), path);
+
+    return files[files.length - 1];
+  }
+
+  private static String[] names(final String s) {
+
+    String[] names = s.split(SEPERATOR);
+
+    return Arrays.copyOfRange(names, Math.min(1, names.length), names.length);
   }
 }
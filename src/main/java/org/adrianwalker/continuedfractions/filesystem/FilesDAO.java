@@ -1,38 +1,107 @@
 package org.adrianwalker.continuedfractions.filesystem;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.StringReader;
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import static org.adrianwalker.continuedfractions.Fraction.decimal;
-import static org.adrianwalker.continuedfractions.Fraction.fraction;
-import static org.adrianwalker.continuedfractions.Matrix.matrix;
-import static org.adrianwalker.continuedfractions.Matrix.moveSubtree;
-import static org.adrianwalker.continuedfractions.filesystem.Path.parent;
+import java.util.Map;
+import java.util.Set;
+import org.adrianwalker.continuedfractions.Fraction;
+import org.adrianwalker.continuedfractions.Key;
+import org.adrianwalker.continuedfractions.Keys;
+import org.adrianwalker.continuedfractions.Transform;
+import static org.adrianwalker.continuedfractions.Fraction.binary;
+import static org.adrianwalker.continuedfractions.Keys.key;
+import static org.adrianwalker.continuedfractions.Keys.ordinal;
+import static org.adrianwalker.continuedfractions.filesystem.Path.range;
 import static org.adrianwalker.continuedfractions.filesystem.Path.sibling;
+import org.postgresql.PGConnection;
+import org.postgresql.PGStatement;
+import org.postgresql.copy.CopyManager;
 import org.postgresql.largeobject.LargeObject;
 import org.postgresql.largeobject.LargeObjectManager;
 
-public final class FilesDAO {
+public final class FilesDAO implements AutoCloseable {
 
   private static final String WRITE
-          = "insert into files (id, nv, dv, sid, snv, sdv, level, name, content) "
-          + "values(?, ?, ?, ?, ?, ?, ?, ?, ?)";
-  private static final String READ
-          = "select id, nv, dv, sid, snv, sdv, level, name, content "
+          = "insert into files (id, nv, dv, sid, snv, sdv, level, name, content, data) "
+          + "values(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  private static final String WRITE_ALL
+          = "with w as ("
+          + "insert into files (id, nv, dv, sid, snv, sdv, level, name, content, data) "
+          + "values ";
+  private static final String WRITE_ROW
+          = "(?, ?, ?, ?, ?, ?, ?, ?, 0, null)";
+  private static final String WRITE_ALL_RETURNING
+          = " returning id, nv, dv, sid, snv, sdv, level, name, content, data) "
+          + "select id, nv, dv, sid, snv, sdv, level, name, content, data "
+          + "from w "
+          + "order by id";
+  private static final String ANCESTORS
+          = "select id, nv, dv, sid, snv, sdv, level, name, content, data "
           + "from files "
-          + "where id = ?";
-  private static final String TREE
-          = "select id, nv, dv, sid, snv, sdv, level, name, content "
+          + "where id in (";
+  private static final String RESOLVE
+          = "with recursive walk (id, nv, dv, sid, snv, sdv, level, name, content, data, depth) as ("
+          + "select ?::bytea, 0::numeric, 0::numeric, ?::bytea, 0::numeric, 0::numeric, ?::integer, ''::varchar, 0::oid, null::bytea, 0 "
+          + "union all "
+          + "select f.id, f.nv, f.dv, f.sid, f.snv, f.sdv, f.level, f.name, f.content, f.data, w.depth + 1 "
+          + "from walk w "
+          + "join files f "
+          + "on f.id > w.id "
+          + "and f.id < w.sid "
+          + "and f.level = w.level + 1 "
+          + "and f.name = (?::varchar[])[w.depth + 1] "
+          + "where not exists (select 1 from trash t where t.id = f.id)) "
+          + "select id, nv, dv, sid, snv, sdv, level, name, content, data "
+          + "from walk "
+          + "where depth > 0 "
+          + "order by depth";
+  private static final String RANGE
+          = "select id, nv, dv, sid, snv, sdv, level, name, content, data "
           + "from files "
           + "where id >= ? "
-          + "and id < (select sid from files where id = ?)";
+          + "and id < ?";
+  private static final String NOT_TRASHED
+          = " and not files_trashed(?)"
+          + " and not exists ("
+          + "select 1 from trash t "
+          + "where t.id > ? "
+          + "and t.id <= files.id "
+          + "and t.sid > files.id)";
+  private static final String READ
+          = "select id, nv, dv, sid, snv, sdv, level, name, content, data "
+          + "from files "
+          + "where id = ? "
+          + "and not files_trashed(?)";
+  private static final String TREE
+          = RANGE
+          + NOT_TRASHED;
+  private static final String TREE_PAGE
+          = TREE
+          + " and id > ?"
+          + " order by id "
+          + "limit ?";
   private static final String CHILDREN
           = TREE
           + " and level = ?";
@@ -40,7 +109,8 @@ public final class FilesDAO {
           = CHILDREN
           + " and name = ?";
   private static final String LAST_CHILD
-          = CHILDREN
+          = RANGE
+          + " and level = ?"
           + " order by id desc "
           + "limit 1";
   private static final String RENAME
@@ -49,257 +119,1628 @@ public final class FilesDAO {
           + "where id = ?";
   private static final String MOVE
           = "update files "
-          + "set id = ?, nv = ?, dv = ?, sid = ?, snv = ?, sdv = ?, level = ? "
-          + "where id = ?";
-  private static final String REMOVE
-          = "delete from files "
+          + "set id = ? || substring(id from ?), "
+          + "sid = case when id = ? then ? else ? || substring(sid from ?) end, "
+          + "nv = ? * nv + ? * dv, "
+          + "dv = ? * nv + ? * dv, "
+          + "snv = ? * snv + ? * sdv, "
+          + "sdv = ? * snv + ? * sdv, "
+          + "level = level + ? "
+          + "where id >= ? "
+          + "and id < ?";
+  private static final String REMOVE = "select files_remove(?, ?)";
+  private static final String TRASH = "insert into trash (id, sid) values (?, ?) on conflict (id) do nothing";
+  private static final String TRASHED = "select id from trash order by deleted, id limit ?";
+  private static final String MOVE_TRASH
+          = "update trash "
+          + "set id = ? || substring(id from ?), sid = ? || substring(sid from ?) "
+          + "where id > ? "
+          + "and id < ?";
+  private static final String PURGE = "select files_purge(?, ?, ?)";
+  private static final String CHILD_IDS
+          = "select id, exists (select 1 from trash t where t.id = files.id) "
+          + "from files "
+          + "where id > ? "
+          + "and id < ? "
+          + "and level = ? "
+          + "order by id";
+  private static final String KEEP_ORDINAL
+          = "insert into ordinals as o (id, last) "
+          + "select ?, coalesce(max(div(c.nv, c.snv - c.nv)), 0)::integer "
+          + "from ("
+          + "select nv, snv "
+          + "from files "
+          + "where id > ? "
+          + "and id < ? "
+          + "and level = ? "
+          + "order by id desc "
+          + "limit 1) c "
+          + "on conflict (id) do update "
+          + "set last = greatest(o.last, excluded.last)";
+  private static final String ORPHANS
+          = "select b.content "
+          + "from blobs b "
+          + "where not exists (select 1 from files f where f.content = b.content) "
+          + "order by b.content "
+          + "limit ?";
+  private static final String RECLAIM_ORPHANS = "select files_reclaim_orphans(?::oid[])";
+  private static final String REMOVE_ORDINALS
+          = "delete from ordinals "
+          + "where id >= ? "
+          + "and id < ?";
+  private static final String LOAD
+          = "copy files (id, nv, dv, sid, snv, sdv, level, name, content, data) "
+          + "from stdin";
+  private static final String REPEATABLE_READ = "set transaction isolation level repeatable read";
+  private static final String CREATE_CONTENT = "select files_create_content()";
+  private static final String FORK_CONTENT = "select files_fork_content(?)";
+  private static final String WRITE_DATA = "select files_write_data(?, ?)";
+  private static final String CHUNKED = "select 1 from manifests where content = ?::oid limit 1";
+  private static final String SHARE_CONTENT
+          = "update blobs b "
+          + "set refs = b.refs + c.n "
+          + "from ("
+          + "select content, count(*) n "
+          + "from files "
+          + "where id >= ? "
+          + "and id < ?"
+          + NOT_TRASHED
+          + " group by content) c "
+          + "where b.content = c.content";
+  private static final String MIRROR
+          = "select id, nv, dv, sid, snv, sdv, level, name, content, data, "
+          + "files_trashed(?) or exists (select 1 from trash t where t.id > ? and t.id <= files.id and t.sid > files.id) "
+          + "from files "
           + "where id >= ? "
-          + "and id < (select sid from files where id = ?)";
+          + "and id < ? "
+          + "order by id";
   private static final String CLEAR = "delete from files";
+  private static final String CLEAR_BLOBS
+          = "with b as (delete from blobs returning content) "
+          + "select count(lo_unlink(content)) from b";
+  private static final String CLEAR_ORDINALS = "delete from ordinals";
+  private static final String CLEAR_MANIFESTS = "delete from manifests";
+  private static final String CLEAR_CHUNKS = "delete from chunks";
+  private static final String CLEAR_TRASH = "delete from trash";
   private static final String ORDER_BY_ID = " order by id";
-  private static final String ORDER_BY_NAME = " order by name";
+  private static final String ORDER_BY_NAME = " order by name collate \"C\"";
+
+  private static final int WRITE_ROW_PARAMETERS = 8;
+  private static final byte[] ROOT_ID = {};
+  private static final byte[] ROOT_SID = {(byte) 0xFF};
+  private static final int STATEMENT_CACHE_SIZE = 64;
+  private static final int FETCH_SIZE = 1000;
+  static final int INLINE_SIZE = LargeObjectStreams.PAGE_SIZE;
 
   private final Connection connection;
   private final LargeObjectManager lom;
+  private final PathCache cache;
+  private final OrdinalAllocator allocator;
+  private final Map<String, PreparedStatement> statements;
+  private int prepareThreshold;
+  private int fetchSize = FETCH_SIZE;
+  private final ChunkStore chunks;
+  private int chunkSize;
+  private int inlineSize = INLINE_SIZE;
+  private MetadataMirror mirror;
+  private final List<byte[][]> written = new ArrayList<>();
+  private final Map<String, File> resolved = new LinkedHashMap<>();
+  private final List<byte[][]> invalidated = new ArrayList<>();
+  private long generation = -1;
+  private boolean snapshot;
 
   public FilesDAO(final Connection connection) throws SQLException {
 
+    this(connection, null);
+  }
+
+  /**
+   * Creates a DAO sharing cache, which only sees the DAO's changes when they
+   * are committed through commit.
+   */
+  public FilesDAO(final Connection connection, final PathCache cache) throws SQLException {
+
+    this(connection, cache, null);
+  }
+
+  public FilesDAO(final Connection connection, final PathCache cache, final OrdinalAllocator allocator) throws SQLException {
+
     this.connection = connection;
-    this.lom = ((org.postgresql.PGConnection) connection).getLargeObjectAPI();
+    this.lom = ((PGConnection) connection).getLargeObjectAPI();
+    this.cache = cache;
+    this.allocator = allocator;
+    this.chunks = new ChunkStore(this, connection);
+    this.statements = new LinkedHashMap<>(16, 0.75f, true);
+    this.prepareThreshold = ((PGConnection) connection).getPrepareThreshold();
   }
 
-  private PreparedStatement prepareStatement(final String sql) throws SQLException {
+  /**
+   * Sets the number of executions of each statement after which it is
+   * prepared on the server, 0 to never prepare on the server.
+   */
+  public void setPrepareThreshold(final int prepareThreshold) throws SQLException {
 
-    return connection.prepareStatement(sql);
+    this.prepareThreshold = prepareThreshold;
+
+    for (PreparedStatement statement : statements.values()) {
+      statement.unwrap(PGStatement.class).setPrepareThreshold(prepareThreshold);
+    }
+  }
+
+  public int getPrepareThreshold() {
+    return prepareThreshold;
+  }
+
+  /**
+   * Sets the number of rows fetched at a time by the cursors of the handler
+   * variants of children and tree.
+   */
+  public void setFetchSize(final int fetchSize) {
+    this.fetchSize = fetchSize;
+  }
+
+  public int getFetchSize() {
+    return fetchSize;
+  }
+
+  /**
+   * Sets the size of the chunks content is written in, storing each distinct
+   * chunk once, or 0 to write content to large objects. Content is read from
+   * whichever store it was written to.
+   */
+  public void setChunkSize(final int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Sets the size up to which content written through a file's output stream
+   * is stored inline in the file's row rather than in a large object, 0 to
+   * always use large objects.
+   */
+  public void setInlineSize(final int inlineSize) {
+    this.inlineSize = inlineSize;
+  }
+
+  public int getInlineSize() {
+    return inlineSize;
+  }
+
+  /**
+   * Sets the metadata mirror this DAO writes through and, while its
+   * transaction has written nothing, reads from, null for none.
+   */
+  public void setMirror(final MetadataMirror mirror) {
+
+    this.mirror = mirror;
+    this.written.clear();
+  }
+
+  public MetadataMirror getMirror() {
+    return mirror;
+  }
+
+  /**
+   * Loads the whole files table into the mirror and commits, returning the
+   * number of files loaded.
+   */
+  public int loadMirror() throws SQLException {
+
+    written.clear();
+    mirror.setLoaded(false);
+
+    try {
+      reload(ROOT_ID, ROOT_SID);
+      connection.commit();
+    } catch (final SQLException | RuntimeException ex) {
+      mirror.clear(ex);
+      throw ex;
+    }
+
+    mirror.setLoaded(true);
+
+    return mirror.size();
+  }
+
+  /**
+   * Commits the connection, then applies the transaction's invalidations and
+   * resolved paths to the path cache and reloads the key ranges it wrote into
+   * the mirror. If reloading fails the mirror is dropped, as the transaction
+   * has already committed.
+   */
+  public void commit() throws SQLException {
+
+    connection.commit();
+    snapshot = false;
+
+    if (null != cache) {
+
+      for (byte[][] range : invalidated) {
+        cache.invalidate(range[0], range[1]);
+      }
+
+      for (Map.Entry<String, File> entry : resolved.entrySet()) {
+        cache.put(entry.getKey(), entry.getValue(), generation);
+      }
+
+      discardCache();
+    }
+
+    if (null == mirror || written.isEmpty()) {
+      return;
+    }
+
+    List<byte[][]> ranges = merge(written);
+    written.clear();
+
+    try {
+
+      for (byte[][] range : ranges) {
+        reload(range[0], range[1]);
+      }
+
+      connection.commit();
+
+    } catch (final SQLException | RuntimeException ex) {
+      mirror.clear(ex);
+      connection.rollback();
+    }
+  }
+
+  /**
+   * Rolls back the connection, discarding the transaction's changes to the
+   * path cache and mirror.
+   */
+  public void rollback() throws SQLException {
+
+    discardCache();
+    written.clear();
+    snapshot = false;
+    connection.rollback();
+  }
+
+  /**
+   * Makes the current transaction repeatable read, before it has run any
+   * other statement. The transaction reads from its snapshot rather than the
+   * mirror until it ends.
+   */
+  public void repeatableRead() throws SQLException {
+
+    prepareStatement(REPEATABLE_READ).execute();
+    snapshot = true;
+  }
+
+  Connection getConnection() {
+    return connection;
+  }
+
+  /**
+   * Closes the cached statements, leaving the connection open.
+   */
+  @Override
+  public void close() throws SQLException {
+
+    Iterator<PreparedStatement> i = statements.values().iterator();
+
+    while (i.hasNext()) {
+      PreparedStatement statement = i.next();
+      i.remove();
+      statement.close();
+    }
+  }
+
+  PreparedStatement prepareStatement(final String sql) throws SQLException {
+
+    PreparedStatement statement = statements.get(sql);
+
+    if (null == statement) {
+
+      statement = connection.prepareStatement(sql);
+      statement.unwrap(PGStatement.class).setPrepareThreshold(prepareThreshold);
+      statements.put(sql, statement);
+
+      if (statements.size() > STATEMENT_CACHE_SIZE) {
+        Iterator<PreparedStatement> eldest = statements.values().iterator();
+        PreparedStatement evicted = eldest.next();
+        eldest.remove();
+        evicted.close();
+      }
+    }
+
+    return statement;
   }
 
   public int clear() throws SQLException {
 
     PreparedStatement remove = prepareStatement(CLEAR);
 
-    return remove.executeUpdate();
+    invalidate(ROOT_ID, ROOT_SID);
+
+    if (null != allocator) {
+      prepareStatement(CLEAR_ORDINALS).executeUpdate();
+    }
+
+    int removed = remove.executeUpdate();
+    prepareStatement(CLEAR_TRASH).executeUpdate();
+    prepareStatement(CLEAR_MANIFESTS).executeUpdate();
+    prepareStatement(CLEAR_CHUNKS).executeUpdate();
+    prepareStatement(CLEAR_BLOBS).executeQuery().close();
+
+    return removed;
   }
 
   public File write(final String filename, final int... path) throws SQLException {
 
-    int[] f = fraction(path);
-    int[] sf = fraction(sibling(path));
+    Key key = key(path, new Key());
     int level = path.length;
 
-    BigDecimal id = decimal(f);
-    BigDecimal sid = decimal(sf);
-    long content = lom.createLO();
+    byte[] id = binary(path);
+    byte[] sid = sid(path);
 
     PreparedStatement write = prepareStatement(WRITE);
-    write.setBigDecimal(1, id);
-    write.setInt(2, f[0]);
-    write.setInt(3, f[1]);
-    write.setBigDecimal(4, sid);
-    write.setInt(5, sf[0]);
-    write.setInt(6, sf[1]);
+    setKey(write, 1, id, sid, key);
     write.setInt(7, level);
     write.setString(8, filename);
-    write.setLong(9, content);
+    write.setLong(9, 0);
+    write.setBytes(10, null);
 
     write.executeUpdate();
+    written(id, sid);
+
+    return new File(id, key.getBigNv(), key.getBigDv(),
+            sid, key.getBigSnv(), key.getBigSdv(),
+            level, filename, 0);
+  }
+
+  /**
+   * Writes a chain of nested files in one statement, the last of which is at
+   * path, so filenames[i] is written at the first path.length - filenames.length
+   * + i + 1 ordinals of path.
+   */
+  public File[] write(final String[] filenames, final int... path) throws SQLException {
+
+    int from = path.length - filenames.length;
+
+    StringBuilder sql = new StringBuilder(WRITE_ALL);
+    for (int i = 0; i < filenames.length; i++) {
+      sql.append(i > 0 ? ", " : "").append(WRITE_ROW);
+    }
+    sql.append(WRITE_ALL_RETURNING);
+
+    PreparedStatement write = prepareStatement(sql.toString());
+    Key key = key(path, 0, from, new Key());
+
+    for (int i = 0; i < filenames.length; i++) {
+
+      int[] p = range(path, 0, from + i + 1);
+      Keys.child(key, path[from + i], key);
+
+      int index = WRITE_ROW_PARAMETERS * i + 1;
+      setKey(write, index, binary(p), sid(p), key);
+      write.setInt(index + 6, p.length);
+      write.setString(index + 7, filenames[i]);
+    }
+
+    int[] top = range(path, 0, from + 1);
+    written(binary(top), sid(top));
+
+    return toFiles(write.executeQuery());
+  }
+
+  /**
+   * Writes files with keys and content already set in one COPY, for bulk
+   * loads of new subtrees.
+   */
+  public long load(final List<File> files) throws SQLException {
+
+    StringBuilder rows = new StringBuilder();
+
+    for (File file : files) {
+      written(file.getId(), file.getSid());
+      hex(rows, file.getId()).append('\t');
+      rows.append(file.getNv()).append('\t');
+      rows.append(file.getDv()).append('\t');
+      hex(rows, file.getSid()).append('\t');
+      rows.append(file.getSnv()).append('\t');
+      rows.append(file.getSdv()).append('\t');
+      rows.append(file.getLevel()).append('\t');
+      escape(rows, file.getName()).append('\t');
+      rows.append(file.getContent()).append('\t');
+
+      if (null == file.getData()) {
+        rows.append("\\N");
+      } else {
+        hex(rows, file.getData());
+      }
+
+      rows.append('\n');
+    }
+
+    CopyManager copy = ((PGConnection) connection).getCopyAPI();
+
+    try {
+      return copy.copyIn(LOAD, new StringReader(rows.toString()));
+    } catch (final IOException ioe) {
+      throw new SQLException(ioe);
+    }
+  }
+
+  /**
+   * Creates content referenced once, by the file it is written to.
+   */
+  public long createContent() throws SQLException {
 
-    return new File(id, f[0], f[1], sid, sf[0], sf[1], level, filename, content);
+    ResultSet rs = prepareStatement(CREATE_CONTENT).executeQuery();
+
+    try {
+      rs.next();
+      return rs.getLong(1);
+    } finally {
+      rs.close();
+    }
   }
 
+  /**
+   * Returns the content of file to write to, first giving the file its own
+   * copy if its content is shared with copies of the file, or a new large
+   * object holding its inline content if it has no large object.
+   */
+  public long fork(final File file) throws SQLException {
+
+    PreparedStatement fork = prepareStatement(FORK_CONTENT);
+    fork.setBytes(1, file.getId());
+
+    long content;
+    ResultSet rs = fork.executeQuery();
+
+    try {
+      rs.next();
+      content = rs.getLong(1);
+    } finally {
+      rs.close();
+    }
+
+    if (content != file.getContent()) {
+      invalidate(file.getId(), file.getSid());
+    }
+
+    return content;
+  }
+
+  /**
+   * Reads the file at path, or returns null if there is none or it is
+   * trashed.
+   */
   public File read(final int... path) throws SQLException {
 
-    BigDecimal id = decimal(fraction(path));
+    if (mirrored()) {
+      return mirror.read(binary(path));
+    }
+
+    byte[] id = binary(path);
 
     PreparedStatement read = prepareStatement(READ);
-    read.setBigDecimal(1, id);
+    read.setBytes(1, id);
+    read.setBytes(2, id);
 
     ResultSet rs = read.executeQuery();
 
     return toFile(rs);
   }
 
+  /**
+   * Resolves names level by level under path, returning the file for each name
+   * until the first name that does not exist. Cached prefixes are served from
+   * the cache and only the remaining names are resolved, in one statement.
+   * Resolved files are put in the cache when the transaction commits, and the
+   * cache is not read once the transaction has invalidated any of it.
+   */
+  public File[] resolve(final String[] names, final int... path) throws SQLException {
+
+    if (mirrored()) {
+      return mirror.resolve(names, binary(path), sid(path), path.length);
+    }
+
+    if (null == cache) {
+      return resolveAll(names, path);
+    }
+
+    if (generation < 0) {
+      generation = cache.getGeneration();
+    }
+
+    File[] files = new File[names.length];
+    String[] keys = new String[names.length];
+
+    String key = PathCache.key(path);
+    for (int i = 0; i < names.length; i++) {
+      key = PathCache.key(key, names[i]);
+      keys[i] = key;
+    }
+
+    int cached = 0;
+    while (invalidated.isEmpty() && cached < names.length && null != (files[cached] = cache.get(keys[cached]))) {
+      cached++;
+    }
+
+    if (cached == names.length) {
+      return files;
+    }
+
+    int[] parent = 0 == cached ? path : files[cached - 1].getPath();
+    File[] resolved = resolveAll(Arrays.copyOfRange(names, cached, names.length), parent);
+
+    for (int i = 0; i < resolved.length; i++) {
+      files[cached + i] = resolved[i];
+      this.resolved.put(keys[cached + i], resolved[i]);
+    }
+
+    return Arrays.copyOf(files, cached + resolved.length);
+  }
+
+  private File[] resolveAll(final String[] names, final int... path) throws SQLException {
+
+    PreparedStatement resolve = prepareStatement(RESOLVE);
+    resolve.setBytes(1, binary(path));
+    resolve.setBytes(2, sid(path));
+    resolve.setInt(3, path.length);
+    resolve.setArray(4, connection.createArrayOf("varchar", names));
+
+    return toFiles(resolve.executeQuery());
+  }
+
+  public File[] ancestors(final int... path) throws SQLException {
+
+    int[][] ancestors = Path.ancestors(path);
+
+    if (0 == ancestors.length) {
+      return new File[0];
+    }
+
+    StringBuilder sql = new StringBuilder(ANCESTORS);
+    for (int i = 0; i < ancestors.length; i++) {
+      sql.append(i > 0 ? ", ?" : "?");
+    }
+    sql.append(")").append(ORDER_BY_ID);
+
+    PreparedStatement read = prepareStatement(sql.toString());
+    for (int i = 0; i < ancestors.length; i++) {
+      read.setBytes(i + 1, binary(ancestors[i]));
+    }
+
+    return toFiles(read.executeQuery());
+  }
+
+  /**
+   * Returns the children of path in name order, comparing names by code
+   * point with or without a mirror.
+   */
   public File[] children(final int... path) throws SQLException {
 
-    BigDecimal id = decimal(fraction(path));
+    if (mirrored()) {
+      return mirror.children(binary(path), sid(path), path.length + 1);
+    }
+
+    byte[] id = binary(path);
 
     PreparedStatement children = prepareStatement(CHILDREN + ORDER_BY_NAME);
-    children.setBigDecimal(1, id);
-    children.setBigDecimal(2, id);
-    children.setInt(3, path.length + 1);
+    children.setBytes(1, id);
+    children.setBytes(2, sid(path));
+    children.setBytes(3, id);
+    children.setBytes(4, id);
+    children.setInt(5, path.length + 1);
 
     return toFiles(children.executeQuery());
   }
 
+  /**
+   * Passes the children of path to handler in name order as they are fetched,
+   * returning the number of children. Rows are fetched through a cursor when
+   * the connection is not in auto-commit mode.
+   */
+  public long children(final FileHandler handler, final int... path) throws SQLException, FileSystemException {
+
+    if (mirrored()) {
+      return handle(mirror.children(binary(path), sid(path), path.length + 1), handler);
+    }
+
+    byte[] id = binary(path);
+
+    try (PreparedStatement children = connection.prepareStatement(CHILDREN + ORDER_BY_NAME)) {
+
+      children.setBytes(1, id);
+      children.setBytes(2, sid(path));
+      children.setBytes(3, id);
+      children.setBytes(4, id);
+      children.setInt(5, path.length + 1);
+
+      return handle(children, handler);
+    }
+  }
+
   public File child(final String name, final int... path) throws SQLException {
 
-    BigDecimal id = decimal(fraction(path));
+    if (mirrored()) {
+      return mirror.child(name, binary(path), sid(path), path.length + 1);
+    }
+
+    byte[] id = binary(path);
 
     PreparedStatement child = prepareStatement(CHILD);
-    child.setBigDecimal(1, id);
-    child.setBigDecimal(2, id);
-    child.setInt(3, path.length + 1);
-    child.setString(4, name);
+    child.setBytes(1, id);
+    child.setBytes(2, sid(path));
+    child.setBytes(3, id);
+    child.setBytes(4, id);
+    child.setInt(5, path.length + 1);
+    child.setString(6, name);
 
     return toFile(child.executeQuery());
   }
 
   public File lastChild(final int... path) throws SQLException {
 
-    BigDecimal id = decimal(fraction(path));
-
     PreparedStatement lastChild = prepareStatement(LAST_CHILD);
-    lastChild.setBigDecimal(1, id);
-    lastChild.setBigDecimal(2, id);
+    lastChild.setBytes(1, binary(path));
+    lastChild.setBytes(2, sid(path));
     lastChild.setInt(3, path.length + 1);
 
     return toFile(lastChild.executeQuery());
   }
 
+  /**
+   * Returns the ordinal for a new child of path, from the ordinal allocator if
+   * there is one, otherwise one after the last child's.
+   */
+  public int nextChild(final int... path) throws SQLException {
+
+    if (null != allocator) {
+      return allocator.next(path);
+    }
+
+    File lc = lastChild(path);
+
+    return null == lc ? 1 : ordinal(lc.getKey()) + 1;
+  }
+
   public File[] tree(final int... path) throws SQLException {
 
-    BigDecimal id = decimal(fraction(path));
+    if (mirrored()) {
+      return mirror.tree(binary(path), sid(path), null, -1);
+    }
+
+    byte[] id = binary(path);
 
     PreparedStatement tree = prepareStatement(TREE + ORDER_BY_ID);
-    tree.setBigDecimal(1, id);
-    tree.setBigDecimal(2, id);
+    tree.setBytes(1, id);
+    tree.setBytes(2, sid(path));
+    tree.setBytes(3, id);
+    tree.setBytes(4, id);
+
+    return toFiles(tree.executeQuery());
+  }
+
+  /**
+   * Passes the subtree at path to handler in id order as it is fetched,
+   * returning the number of files. Rows are fetched through a cursor when the
+   * connection is not in auto-commit mode.
+   */
+  public long tree(final FileHandler handler, final int... path) throws SQLException, FileSystemException {
+
+    if (mirrored()) {
+      return handle(mirror.tree(binary(path), sid(path), null, -1), handler);
+    }
+
+    byte[] id = binary(path);
+
+    try (PreparedStatement tree = connection.prepareStatement(TREE + ORDER_BY_ID)) {
+
+      tree.setBytes(1, id);
+      tree.setBytes(2, sid(path));
+      tree.setBytes(3, id);
+      tree.setBytes(4, id);
+
+      return handle(tree, handler);
+    }
+  }
+
+  /**
+   * Returns up to limit files of the subtree at path ordered by id, starting
+   * after the file with id after.
+   */
+  public File[] tree(final int[] path, final byte[] after, final int limit) throws SQLException {
+
+    if (mirrored()) {
+      return mirror.tree(binary(path), sid(path), after, limit);
+    }
+
+    byte[] id = binary(path);
+
+    PreparedStatement tree = prepareStatement(TREE_PAGE);
+    tree.setBytes(1, id);
+    tree.setBytes(2, sid(path));
+    tree.setBytes(3, id);
+    tree.setBytes(4, id);
+    tree.setBytes(5, after);
+    tree.setInt(6, limit);
 
     return toFiles(tree.executeQuery());
   }
 
   public int rename(final String filename, final int... path) throws SQLException {
 
-    BigDecimal id = decimal(fraction(path));
+    byte[] id = binary(path);
 
     PreparedStatement rename = prepareStatement(RENAME);
     rename.setString(1, filename);
-    rename.setBigDecimal(2, id);
+    rename.setBytes(2, id);
+
+    if (null != cache) {
+      invalidated.add(new byte[][]{id, sid(path)});
+    }
+
+    written(id, Arrays.copyOf(id, id.length + 1));
 
     return rename.executeUpdate();
   }
 
+  /**
+   * Removes the subtree at path in one server side call, which deletes the
+   * rows and releases their content, unlinking large objects no longer
+   * referenced.
+   */
   public int remove(final int... path) throws SQLException {
 
-    for (File file : tree(path)) {
-      lom.delete(file.getContent());
+    PreparedStatement remove = prepareStatement(REMOVE);
+    remove.setBytes(1, binary(path));
+    remove.setBytes(2, sid(path));
+
+    invalidate(path);
+    removeOrdinals(path);
+
+    try (ResultSet rs = remove.executeQuery()) {
+      rs.next();
+      return rs.getInt(1);
     }
+  }
 
-    BigDecimal id = decimal(fraction(path));
+  /**
+   * Moves the subtree at path to the trash by recording its key range, which
+   * hides it from name resolution, children and trees until it is purged.
+   * Only the trash row is written, the subtree's rows are left for purge.
+   */
+  public int trash(final int... path) throws SQLException {
 
-    PreparedStatement remove = prepareStatement(REMOVE);
-    remove.setBigDecimal(1, id);
-    remove.setBigDecimal(2, id);
+    PreparedStatement trash = prepareStatement(TRASH);
+    trash.setBytes(1, binary(path));
+    trash.setBytes(2, sid(path));
 
-    return remove.executeUpdate();
+    invalidate(path);
+
+    return trash.executeUpdate();
   }
 
-  public int[] move(final int[] from, final int[] to) throws SQLException, IOException {
+  /**
+   * Returns the paths of up to limit trashed subtrees, oldest first.
+   */
+  public int[][] trashed(final int limit) throws SQLException {
+
+    PreparedStatement trashed = prepareStatement(TRASHED);
+    trashed.setInt(1, limit);
 
-    return moveCopy(MOVE, from, to);
+    List<int[]> paths = new ArrayList<>();
+
+    try (ResultSet rs = trashed.executeQuery()) {
+      while (rs.next()) {
+        paths.add(Fraction.continued(rs.getBytes(1)));
+      }
+    }
+
+    return paths.toArray(new int[paths.size()][]);
   }
 
-  public int[] copy(final int[] from, final int[] to) throws SQLException, IOException {
+  /**
+   * Removes up to limit files of the trashed subtree at path, the top of the
+   * subtree last, returning the number removed or 0 once it is gone, when
+   * its ordinals are removed too.
+   */
+  public int purge(final int[] path, final int limit) throws SQLException {
+
+    PreparedStatement purge = prepareStatement(PURGE);
+    purge.setBytes(1, binary(path));
+    purge.setBytes(2, sid(path));
+    purge.setInt(3, limit);
+
+    written(binary(path), sid(path));
+
+    int n;
+
+    try (ResultSet rs = purge.executeQuery()) {
+      rs.next();
+      n = rs.getInt(1);
+    }
+
+    if (0 == n) {
+      removeOrdinals(path);
+    }
+
+    return n;
+  }
+
+  /**
+   * Returns up to limit contents that no file refers to.
+   */
+  public long[] orphans(final int limit) throws SQLException {
+
+    PreparedStatement orphans = prepareStatement(ORPHANS);
+    orphans.setInt(1, limit);
+
+    List<Long> contents = new ArrayList<>();
+
+    try (ResultSet rs = orphans.executeQuery()) {
+      while (rs.next()) {
+        contents.add(rs.getLong(1));
+      }
+    }
+
+    long[] l = new long[contents.size()];
+    for (int i = 0; i < l.length; i++) {
+      l[i] = contents.get(i);
+    }
+
+    return l;
+  }
+
+  /**
+   * Releases those of contents that no file still refers to, returning the
+   * number released.
+   */
+  public int reclaimOrphans(final long[] contents) throws SQLException {
+
+    Long[] array = new Long[contents.length];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = contents[i];
+    }
+
+    PreparedStatement reclaim = prepareStatement(RECLAIM_ORPHANS);
+    reclaim.setArray(1, connection.createArrayOf("int8", array));
+
+    try (ResultSet rs = reclaim.executeQuery()) {
+      rs.next();
+      return rs.getInt(1);
+    }
+  }
+
+  /**
+   * Moves the subtree at from to a new last child of to in one statement,
+   * which applies the move's transform to the keys of every file in the
+   * subtree's range and grafts the new child's id onto their ids, so the
+   * work in the client does not grow with the size of the subtree.
+   */
+  public int move(final int[] from, final int[] to) throws SQLException {
+
+    return move(from, to, nextChild(to));
+  }
+
+  /**
+   * Renumbers up to limit children of parent, in ordinal order, to the lowest
+   * ordinals not taken by another child, moving each child's subtree with one
+   * statement. Trashed children keep their ordinals. With an ordinal
+   * allocator, parent's ordinal counter is kept at least its last child's
+   * ordinal and never lowered, as other allocators may still hold blocks
+   * reserved from it, so new children follow the highest ordinal reserved.
+   * Returns the number of children renumbered, 0 once parent's ordinals are
+   * dense.
+   */
+  public int compact(final int[] parent, final int limit) throws SQLException {
+
+    PreparedStatement children = prepareStatement(CHILD_IDS);
+    children.setBytes(1, binary(parent));
+    children.setBytes(2, sid(parent));
+    children.setInt(3, parent.length + 1);
+
+    Set<Integer> trashed = new HashSet<>();
+    List<int[]> moves = new ArrayList<>();
+    List<Integer> ordinals = new ArrayList<>();
+    int next = 1;
+
+    try (ResultSet rs = children.executeQuery()) {
+
+      while (moves.size() < limit && rs.next()) {
+
+        int[] path = Fraction.continued(rs.getBytes(1));
+
+        if (rs.getBoolean(2)) {
+          trashed.add(path[parent.length]);
+          continue;
+        }
+
+        while (trashed.contains(next)) {
+          next++;
+        }
+
+        if (path[parent.length] != next) {
+          moves.add(path);
+          ordinals.add(next);
+        }
+
+        next++;
+      }
+    }
+
+    for (int i = 0; i < moves.size(); i++) {
+      move(moves.get(i), parent, ordinals.get(i));
+    }
+
+    if (null != allocator) {
+      PreparedStatement keep = prepareStatement(KEEP_ORDINAL);
+      keep.setBytes(1, binary(parent));
+      keep.setBytes(2, binary(parent));
+      keep.setBytes(3, sid(parent));
+      keep.setInt(4, parent.length + 1);
+      keep.executeUpdate();
+    }
 
-    return moveCopy(WRITE, from, to);
+    return moves.size();
   }
 
-  private int[] moveCopy(final String sql, final int[] from, final int[] to) throws SQLException, IOException {
+  /**
+   * Moves the subtree at from to child m of to, which must be free.
+   */
+  private int move(final int[] from, final int[] to, final int m) throws SQLException {
+
+    byte[] fromId = binary(from);
+    byte[] fromSid = sid(from);
+    byte[] toId = binary(append(to, m));
+    byte[] toSid = binary(append(to, m + 1));
 
-    int[] p = parent(from);
-    int[] pf0 = fraction(p);
-    int[] psf0 = fraction(sibling(p));
-    int[] pf1 = fraction(to);
-    int[] psf1 = fraction(sibling(to));
+    invalidate(toId, toSid);
+    invalidate(fromId, fromSid);
 
-    int m = 1;
-    File lc = lastChild(to);
-    if (null != lc) {
-      m = (lc.getSnv() - pf1[0]) / psf1[0];
+    if (null != allocator) {
+      allocator.reset(from);
+      allocator.reset(append(to, m));
     }
 
-    int n = from[from.length - 1];
+    removeOrdinals(from);
+
+    PreparedStatement trash = prepareStatement(MOVE_TRASH);
+    trash.setBytes(1, toId);
+    trash.setInt(2, fromId.length + 1);
+    trash.setBytes(3, toId);
+    trash.setInt(4, fromId.length + 1);
+    trash.setBytes(5, fromId);
+    trash.setBytes(6, fromSid);
+    trash.executeUpdate();
+
+    BigInteger[] c = transform(from, to, m).getCoefficients();
+
+    PreparedStatement move = prepareStatement(MOVE);
+    move.setBytes(1, toId);
+    move.setInt(2, fromId.length + 1);
+    move.setBytes(3, fromId);
+    move.setBytes(4, toSid);
+    move.setBytes(5, toId);
+    move.setInt(6, fromId.length + 1);
+
+    for (int i = 0; i < 4; i++) {
+      move.setBigDecimal(7 + 2 * i, new BigDecimal(c[2 * (i % 2)]));
+      move.setBigDecimal(8 + 2 * i, new BigDecimal(c[2 * (i % 2) + 1]));
+    }
+
+    move.setInt(15, to.length + 1 - from.length);
+    move.setBytes(16, fromId);
+    move.setBytes(17, fromSid);
 
-    int[][] p0 = matrix(pf0[0], psf0[0], pf0[1], psf0[1]);
-    int[][] p1 = matrix(pf1[0], psf1[0], pf1[1], psf1[1]);
+    return move.executeUpdate();
+  }
 
-    PreparedStatement move = prepareStatement(sql);
+  public int[] copy(final int[] from, final int[] to) throws SQLException, IOException {
+
+    byte[] fromId = binary(from);
+
+    PreparedStatement share = prepareStatement(SHARE_CONTENT);
+    share.setBytes(1, fromId);
+    share.setBytes(2, sid(from));
+    share.setBytes(3, fromId);
+    share.setBytes(4, fromId);
+    share.executeUpdate();
+
+    int m = nextChild(to);
+
+    byte[] toId = binary(append(to, m));
+    byte[] toSid = binary(append(to, m + 1));
+
+    invalidate(toId, toSid);
+
+    Transform transform = transform(from, to, m);
+    Key key = new Key();
+    PreparedStatement write = prepareStatement(WRITE);
+    write.clearBatch();
 
     for (File file : tree(from)) {
 
-      int[][] M0 = matrix(file.getNv(), file.getSnv(), file.getDv(), file.getSdv());
-      int[][] M1 = moveSubtree(p0, m, p1, n, M0);
+      key.set(file.getNv(), file.getDv(), file.getSnv(), file.getSdv());
+      transform.apply(key, key);
 
-      int[] f = fraction(M1[0][0], M1[1][0]);
-      int[] sf = fraction(M1[0][1], M1[1][1]);
-      BigDecimal id = decimal(f);
-      BigDecimal sid = decimal(sf);
-      int level = to.length + (file.getLevel() - p.length);
+      byte[] id = graft(file.getId(), fromId.length, toId);
+      byte[] sid = Arrays.equals(fromId, file.getId()) ? toSid : graft(file.getSid(), fromId.length, toId);
+      int level = to.length + 1 + file.getLevel() - from.length;
 
-      move.setBigDecimal(1, id);
-      move.setInt(2, f[0]);
-      move.setInt(3, f[1]);
-      move.setBigDecimal(4, sid);
-      move.setInt(5, sf[0]);
-      move.setInt(6, sf[1]);
-      move.setInt(7, level);
+      setKey(write, 1, id, sid, key);
+      write.setInt(7, level);
+      write.setString(8, file.getName());
+      write.setLong(9, file.getContent());
+      write.setBytes(10, file.getData());
 
-      switch (sql) {
+      write.addBatch();
+    }
 
-        case MOVE:
-          move.setBigDecimal(8, file.getId());
-          break;
+    return write.executeBatch();
+  }
+
+  /**
+   * Returns the transform moving the subtree at from to child m of to.
+   */
+  private static Transform transform(final int[] from, final int[] to, final int m) {
 
-        case WRITE:
-          long oid = lom.createLO();
+    int p = from.length - 1;
 
-          move.setString(8, file.getName());
-          move.setLong(9, oid);
+    return new Transform(key(from, 0, p, new Key()), m, key(to, new Key()), from[p]);
+  }
 
-          Stream.copy(getInputStream(file.getContent()), getOutputStream(oid));
+  /**
+   * Copies content from one large object to another without streams.
+   */
+  public void copyContent(final long from, final long to) throws SQLException {
 
-          break;
+    LargeObject in = lom.open(from, LargeObjectManager.READ);
+
+    try {
+
+      LargeObject out = lom.open(to, LargeObjectManager.WRITE);
+
+      try {
+        LargeObjectStreams.copy(in, out);
+      } finally {
+        out.close();
       }
 
-      move.addBatch();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns the size of content in either store. Chunked content's large
+   * object is empty, so only empty large objects are looked up in the chunk
+   * store.
+   */
+  public long size(final long oid) throws SQLException {
+
+    LargeObject obj = lom.open(oid, LargeObjectManager.READ);
+    long size;
+
+    try {
+      size = obj.size();
+    } finally {
+      obj.close();
     }
 
-    return move.executeBatch();
+    if (size > 0) {
+      return size;
+    }
+
+    return Math.max(0, chunks.size(oid));
   }
 
+  /**
+   * Opens a stream on content in either store, reading the chunk store only
+   * if the large object turns out to be empty.
+   */
   public InputStream getInputStream(final long oid) throws SQLException {
 
     LargeObject obj = lom.open(oid, LargeObjectManager.READ);
 
-    return obj.getInputStream();
+    return new FilterInputStream(LargeObjectStreams.inputStream(obj)) {
+
+      private boolean read;
+
+      @Override
+      public int read() throws IOException {
+
+        byte[] b = new byte[1];
+
+        return -1 == read(b, 0, 1) ? -1 : b[0] & 0xFF;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len) throws IOException {
+
+        int n = in.read(b, off, len);
+
+        if (-1 == n && !read) {
+
+          read = true;
+          InputStream chunked;
+
+          try {
+            chunked = chunks.getInputStream(oid);
+          } catch (final SQLException sqle) {
+            throw new IOException(sqle);
+          }
+
+          if (null != chunked) {
+            in.close();
+            in = chunked;
+            n = in.read(b, off, len);
+          }
+        }
+
+        read |= n > 0;
+
+        return n;
+      }
+    };
   }
 
+  /**
+   * Opens content for writing in place, so content shared with copies should
+   * be written through the content returned by fork. With a chunk size set
+   * the content is replaced by what is written, when the stream is closed,
+   * otherwise chunked content is first moved to the large object.
+   */
   public OutputStream getOutputStream(final long oid) throws SQLException {
 
+    if (chunkSize > 0) {
+      LargeObject obj = lom.open(oid, LargeObjectManager.WRITE);
+      obj.truncate(0);
+      obj.close();
+      return chunks.getOutputStream(oid, chunkSize);
+    }
+
+    unchunk(oid);
+
+    return LargeObjectStreams.outputStream(lom.open(oid, LargeObjectManager.WRITE));
+  }
+
+  public long size(final File file) throws SQLException {
+
+    if (0 != file.getContent()) {
+      return size(file.getContent());
+    }
+
+    return null == file.getData() ? 0 : file.getData().length;
+  }
+
+  /**
+   * Opens a stream on file's content, inline or in a large object.
+   */
+  public InputStream getInputStream(final File file) throws SQLException {
+
+    if (0 != file.getContent()) {
+      return getInputStream(file.getContent());
+    }
+
+    return new ByteArrayInputStream(null == file.getData() ? new byte[0] : file.getData());
+  }
+
+  /**
+   * Opens a stream that replaces file's content. Content up to the inline
+   * size is buffered and stored inline when the stream is closed, releasing
+   * any large object, larger content is written to the file's own large
+   * object as returned by fork.
+   */
+  public OutputStream getOutputStream(final File file) {
+
+    return new OutputStream() {
+
+      private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      private OutputStream out;
+      private boolean closed;
+
+      @Override
+      public void write(final int b) throws IOException {
+
+        write(new byte[]{(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(final byte[] b, final int off, final int len) throws IOException {
+
+        if (null == out && buffer.size() + len > inlineSize) {
+
+          try {
+            out = open(fork(file));
+          } catch (final SQLException sqle) {
+            throw new IOException(sqle);
+          }
+
+          buffer.writeTo(out);
+        }
+
+        if (null == out) {
+          buffer.write(b, off, len);
+        } else {
+          out.write(b, off, len);
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+
+        if (closed) {
+          return;
+        }
+
+        closed = true;
+
+        if (null != out) {
+          out.close();
+          return;
+        }
+
+        try {
+
+          PreparedStatement write = prepareStatement(WRITE_DATA);
+          write.setBytes(1, file.getId());
+          write.setBytes(2, buffer.toByteArray());
+          write.executeQuery().close();
+
+        } catch (final SQLException sqle) {
+          throw new IOException(sqle);
+        }
+
+        invalidate(file.getId(), file.getSid());
+      }
+    };
+  }
+
+  /**
+   * Opens a seekable channel on file's content. Writable channels write to the
+   * file's own large object as returned by fork, moving chunked content to
+   * the large object first, read only channels on inline content read the
+   * file's inline data and on chunked content read chunks by position.
+   */
+  public SeekableByteChannel getChannel(final File file, final Set<? extends OpenOption> options)
+          throws SQLException, IOException {
+
+    boolean append = options.contains(StandardOpenOption.APPEND);
+    boolean write = append || options.contains(StandardOpenOption.WRITE);
+
+    if (!write && 0 == file.getContent()) {
+      return new ByteArrayChannel(null == file.getData() ? new byte[0] : file.getData());
+    }
+
+    long oid = write ? fork(file) : file.getContent();
+
+    if (write) {
+      unchunk(oid);
+    } else {
+
+      long[] ends = chunks.ends(oid);
+
+      if (null != ends) {
+        return new ChunkChannel(chunks, oid, ends);
+      }
+    }
+
+    LargeObject obj = lom.open(oid, write ? LargeObjectManager.READWRITE : LargeObjectManager.READ);
+
+    if (write && options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+      obj.truncate(0);
+    }
+
+    return new LargeObjectChannel(obj, write, append);
+  }
+
+  private OutputStream open(final long oid) throws SQLException {
+
+    if (chunkSize > 0) {
+      return getOutputStream(oid);
+    }
+
+    chunks.release(oid);
+
     LargeObject obj = lom.open(oid, LargeObjectManager.WRITE);
+    obj.truncate(0);
 
-    return obj.getOutputStream();
+    return LargeObjectStreams.outputStream(obj);
+  }
+
+  private boolean chunked(final long oid) throws SQLException {
+
+    PreparedStatement chunked = prepareStatement(CHUNKED);
+    chunked.setLong(1, oid);
+
+    try (ResultSet rs = chunked.executeQuery()) {
+      return rs.next();
+    }
+  }
+
+  /**
+   * Moves chunked content to its large object, so it can be written in
+   * place, and releases its manifest.
+   */
+  private void unchunk(final long oid) throws SQLException {
+
+    InputStream chunked = chunked(oid) ? chunks.getInputStream(oid) : null;
+
+    if (null == chunked) {
+      return;
+    }
+
+    LargeObject obj = lom.open(oid, LargeObjectManager.WRITE);
+    obj.truncate(0);
+
+    try (InputStream in = chunked; OutputStream out = LargeObjectStreams.outputStream(obj)) {
+
+      byte[] b = new byte[LargeObjectStreams.BUFFER_SIZE];
+      int n;
+
+      while (-1 != (n = in.read(b))) {
+        out.write(b, 0, n);
+      }
+
+    } catch (final IOException ioe) {
+      throw new SQLException(ioe);
+    }
+
+    chunks.release(oid);
+  }
+
+  private void invalidate(final int[] path) {
+
+    invalidate(binary(path), sid(path));
+  }
+
+  /**
+   * Records a key range written by the transaction, to invalidate in the path
+   * cache and reload into the mirror on commit.
+   */
+  private void invalidate(final byte[] id, final byte[] sid) {
+
+    if (null != cache) {
+      invalidated.add(new byte[][]{id, sid});
+    }
+
+    written(id, sid);
+  }
+
+  private void discardCache() {
+
+    resolved.clear();
+    invalidated.clear();
+    generation = -1;
+  }
+
+  /**
+   * Records a key range written by the transaction, to reload into the
+   * mirror on commit.
+   */
+  private void written(final byte[] id, final byte[] sid) {
+
+    if (null != mirror) {
+      written.add(new byte[][]{id, sid});
+    }
+  }
+
+  private boolean mirrored() {
+
+    return null != mirror && mirror.isLoaded() && written.isEmpty() && !snapshot;
+  }
+
+  private void reload(final byte[] low, final byte[] high) throws SQLException {
+
+    try (PreparedStatement reload = connection.prepareStatement(MIRROR);
+            MetadataMirror.Update update = mirror.update(low, high)) {
+
+      reload.setFetchSize(fetchSize);
+      reload.setBytes(1, low);
+      reload.setBytes(2, low);
+      reload.setBytes(3, low);
+      reload.setBytes(4, high);
+
+      try (ResultSet rs = reload.executeQuery()) {
+        while (rs.next()) {
+          update.add(newFile(rs), rs.getBoolean(11));
+        }
+      }
+
+      update.commit();
+    }
+  }
+
+  /**
+   * Sorts key ranges and merges those that overlap.
+   */
+  private static List<byte[][]> merge(final List<byte[][]> ranges) {
+
+    List<byte[][]> sorted = new ArrayList<>(ranges);
+    Collections.sort(sorted, new Comparator<byte[][]>() {
+
+      @Override
+      public int compare(final byte[][] r1, final byte[][] r2) {
+
+        return PathCache.UNSIGNED.compare(r1[0], r2[0]);
+      }
+    });
+
+    List<byte[][]> merged = new ArrayList<>();
+    byte[][] last = null;
+
+    for (byte[][] range : sorted) {
+
+      if (null != last && PathCache.UNSIGNED.compare(range[0], last[1]) <= 0) {
+
+        if (PathCache.UNSIGNED.compare(range[1], last[1]) > 0) {
+          last[1] = range[1];
+        }
+
+      } else {
+        last = new byte[][]{range[0], range[1]};
+        merged.add(last);
+      }
+    }
+
+    return merged;
+  }
+
+  private void removeOrdinals(final int[] path) throws SQLException {
+
+    if (null != allocator) {
+      PreparedStatement remove = prepareStatement(REMOVE_ORDINALS);
+      remove.setBytes(1, binary(path));
+      remove.setBytes(2, sid(path));
+      remove.executeUpdate();
+    }
+  }
+
+  private static StringBuilder hex(final StringBuilder sb, final byte[] bytes) {
+
+    sb.append("\\\\x");
+
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+
+    return sb;
+  }
+
+  private static StringBuilder escape(final StringBuilder sb, final String s) {
+
+    for (int i = 0; i < s.length(); i++) {
+
+      char c = s.charAt(i);
+
+      switch (c) {
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+
+    return sb;
+  }
+
+  static byte[] sid(final int[] path) {
+
+    if (0 == path.length) {
+      return ROOT_SID;
+    }
+
+    return binary(sibling(path));
+  }
+
+  private static int[] append(final int[] path, final int c) {
+
+    int[] child = Arrays.copyOf(path, path.length + 1);
+    child[path.length] = c;
+
+    return child;
+  }
+
+  private static byte[] graft(final byte[] id, final int from, final byte[] to) {
+
+    byte[] grafted = Arrays.copyOf(to, to.length + id.length - from);
+    System.arraycopy(id, from, grafted, to.length, id.length - from);
+
+    return grafted;
+  }
+
+  private static void setKey(
+          final PreparedStatement ps, final int index,
+          final byte[] id, final byte[] sid, final Key key) throws SQLException {
+
+    ps.setBytes(index, id);
+    ps.setBytes(index + 3, sid);
+
+    if (key.isWide()) {
+      ps.setBigDecimal(index + 1, new BigDecimal(key.getBigNv()));
+      ps.setBigDecimal(index + 2, new BigDecimal(key.getBigDv()));
+      ps.setBigDecimal(index + 4, new BigDecimal(key.getBigSnv()));
+      ps.setBigDecimal(index + 5, new BigDecimal(key.getBigSdv()));
+    } else {
+      ps.setLong(index + 1, key.getNv());
+      ps.setLong(index + 2, key.getDv());
+      ps.setLong(index + 4, key.getSnv());
+      ps.setLong(index + 5, key.getSdv());
+    }
   }
 
   private File toFile(final ResultSet rs) throws SQLException {
 
     File file = null;
 
-    if (rs.next()) {
-      file = new File(rs.getBigDecimal(1), rs.getInt(2), rs.getInt(3),
-              rs.getBigDecimal(4), rs.getInt(5), rs.getInt(6),
-              rs.getInt(7), rs.getString(8), rs.getLong(9));
+    try {
+      if (rs.next()) {
+        file = newFile(rs);
+      }
+    } finally {
+      rs.close();
     }
 
     return file;
   }
 
+  private File newFile(final ResultSet rs) throws SQLException {
+
+    File file = new File(rs.getBytes(1), rs.getBigDecimal(2).toBigIntegerExact(), rs.getBigDecimal(3).toBigIntegerExact(),
+            rs.getBytes(4), rs.getBigDecimal(5).toBigIntegerExact(), rs.getBigDecimal(6).toBigIntegerExact(),
+            rs.getInt(7), rs.getString(8), rs.getLong(9));
+    file.setData(rs.getBytes(10));
+
+    return file;
+  }
+
+  private long handle(final PreparedStatement ps, final FileHandler handler) throws SQLException, FileSystemException {
+
+    ps.setFetchSize(fetchSize);
+
+    long n = 0;
+
+    try (ResultSet rs = ps.executeQuery()) {
+      while (rs.next()) {
+        handler.handle(newFile(rs));
+        n++;
+      }
+    }
+
+    return n;
+  }
+
+  private static long handle(final File[] files, final FileHandler handler) throws FileSystemException {
+
+    for (File file : files) {
+      handler.handle(file);
+    }
+
+    return files.length;
+  }
+
   private File[] toFiles(final ResultSet rs) throws SQLException {
 
     List<File> l = new ArrayList<>();
 
-    while (rs.next()) {
-      l.add(new File(rs.getBigDecimal(1), rs.getInt(2), rs.getInt(3),
-              rs.getBigDecimal(4), rs.getInt(5), rs.getInt(6),
-              rs.getInt(7), rs.getString(8), rs.getLong(9)));
+    try {
+      while (rs.next()) {
+        l.add(newFile(rs));
+      }
+    } finally {
+      rs.close();
     }
 
     return l.toArray(new File[l.size()]);
@@ -0,0 +1,193 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import javax.sql.DataSource;
+
+/**
+ * Pool of FilesDAOs over connections from a DataSource, which may itself be a
+ * pooling DataSource. At most size DAOs are borrowed at once, and released
+ * DAOs keep their connection and prepared statements for the next borrower.
+ * The DAOs share one path cache, ordinal allocator and metadata mirror.
+ */
+public final class FilesDAOPool implements AutoCloseable {
+
+  private final DataSource dataSource;
+  private final PathCache cache;
+  private final OrdinalAllocator allocator;
+  private final Semaphore permits;
+  private final BlockingDeque<FilesDAO> idle;
+  private volatile int chunkSize;
+  private volatile int inlineSize = FilesDAO.INLINE_SIZE;
+  private volatile MetadataMirror mirror;
+
+  public FilesDAOPool(final DataSource dataSource, final int size) {
+
+    this(dataSource, size, null);
+  }
+
+  public FilesDAOPool(final DataSource dataSource, final int size, final PathCache cache) {
+
+    this(dataSource, size, cache, null);
+  }
+
+  public FilesDAOPool(final DataSource dataSource, final int size, final PathCache cache, final OrdinalAllocator allocator) {
+
+    this.dataSource = dataSource;
+    this.cache = cache;
+    this.allocator = allocator;
+    this.permits = new Semaphore(size, true);
+    this.idle = new LinkedBlockingDeque<>(size);
+  }
+
+  /**
+   * Sets the chunk size of DAOs borrowed from now on, see
+   * FilesDAO.setChunkSize.
+   */
+  public void setChunkSize(final int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Sets the inline size of DAOs borrowed from now on, see
+   * FilesDAO.setInlineSize.
+   */
+  public void setInlineSize(final int inlineSize) {
+    this.inlineSize = inlineSize;
+  }
+
+  public int getInlineSize() {
+    return inlineSize;
+  }
+
+  /**
+   * Sets the metadata mirror of DAOs borrowed from now on, see
+   * FilesDAO.setMirror. The mirror is loaded by loadMirror.
+   */
+  public void setMirror(final MetadataMirror mirror) {
+    this.mirror = mirror;
+  }
+
+  public MetadataMirror getMirror() {
+    return mirror;
+  }
+
+  /**
+   * Loads the files table into the mirror, returning the number of files
+   * loaded.
+   */
+  public int loadMirror() throws SQLException {
+
+    FilesDAO dao = borrow();
+    int loaded;
+
+    try {
+      loaded = dao.loadMirror();
+    } catch (final SQLException | RuntimeException ex) {
+      release(dao, false);
+      throw ex;
+    }
+
+    release(dao);
+
+    return loaded;
+  }
+
+  public FilesDAO borrow() throws SQLException {
+
+    try {
+      permits.acquire();
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new SQLException(ie);
+    }
+
+    FilesDAO dao = idle.pollFirst();
+
+    if (null == dao) {
+
+      try {
+        Connection connection = dataSource.getConnection();
+        connection.setAutoCommit(false);
+        dao = new FilesDAO(connection, cache, allocator);
+      } catch (final SQLException | RuntimeException ex) {
+        permits.release();
+        throw ex;
+      }
+    }
+
+    if (dao.getChunkSize() != chunkSize) {
+      dao.setChunkSize(chunkSize);
+    }
+
+    dao.setInlineSize(inlineSize);
+
+    if (dao.getMirror() != mirror) {
+      dao.setMirror(mirror);
+    }
+
+    return dao;
+  }
+
+  public void release(final FilesDAO dao) {
+
+    idle.offerFirst(dao);
+    permits.release();
+  }
+
+  /**
+   * Commits or rolls back a borrowed DAO's transaction and releases it, or
+   * discards it if that fails.
+   */
+  public void release(final FilesDAO dao, final boolean commit) throws SQLException {
+
+    try {
+      if (commit) {
+        dao.commit();
+      } else {
+        dao.rollback();
+      }
+    } catch (final SQLException sqle) {
+
+      try {
+        discard(dao);
+      } catch (final SQLException discard) {
+        sqle.addSuppressed(discard);
+      }
+
+      throw sqle;
+    }
+
+    release(dao);
+  }
+
+  /**
+   * Closes a borrowed DAO's connection instead of returning it to the pool,
+   * for when its state is unknown.
+   */
+  public void discard(final FilesDAO dao) throws SQLException {
+
+    try {
+      dao.getConnection().close();
+    } finally {
+      permits.release();
+    }
+  }
+
+  @Override
+  public void close() throws SQLException {
+
+    FilesDAO dao;
+
+    while (null != (dao = idle.pollFirst())) {
+      dao.getConnection().close();
+    }
+  }
+}
@@ -0,0 +1,479 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.adrianwalker.continuedfractions.Key;
+import org.adrianwalker.continuedfractions.Keys;
+import static org.adrianwalker.continuedfractions.Fraction.binary;
+import static org.adrianwalker.continuedfractions.Keys.key;
+import static org.adrianwalker.continuedfractions.filesystem.Path.sibling;
+
+/**
+ * Imports a local directory, zip or tar stream as a new subtree. Keys are
+ * computed in memory, metadata is written with COPY in batches, and each
+ * batch's content is loaded into large objects by parallel threads, or kept
+ * inline up to the DAOs' inline size. Batches are committed as they are
+ * written, content before metadata, so a failed import leaves the batches
+ * written so far and possibly unreferenced content. Entries under a file's
+ * path are added as the file's children, as exported for files with both
+ * content and children.
+ */
+public final class Importer {
+
+  private static final int ENTRY_BUFFER_SIZE = 1024 * 1024;
+  private static final long BUFFER_SIZE = 64L * 1024 * 1024;
+
+  private interface Content {
+
+    InputStream open() throws IOException;
+  }
+
+  private static final class Node {
+
+    private final int[] path;
+    private final Key key;
+    private int children;
+
+    private Node(final int[] path, final Key key) {
+
+      this.path = path;
+      this.key = key;
+    }
+  }
+
+  private final FilesDAOPool pool;
+  private final int threads;
+  private final int batchSize;
+
+  public Importer(final FilesDAOPool pool, final int threads, final int batchSize) {
+
+    this.pool = pool;
+    this.threads = threads;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Imports directory as a new child called name of parent, returning the new
+   * child's path.
+   */
+  public int[] importDirectory(final java.nio.file.Path directory, final String name, final int... parent)
+          throws SQLException, IOException {
+
+    try (Load load = new Load(name, parent);
+            java.util.stream.Stream<java.nio.file.Path> walk = Files.walk(directory)) {
+
+      Iterator<java.nio.file.Path> i = walk.iterator();
+
+      while (i.hasNext()) {
+
+        final java.nio.file.Path file = i.next();
+        String[] names = names(directory.relativize(file));
+
+        if (0 == names.length) {
+          continue;
+        }
+
+        if (Files.isDirectory(file)) {
+          load.directory(names);
+        } else if (Files.isRegularFile(file)) {
+          load.file(names, new Content() {
+
+            @Override
+            public InputStream open() throws IOException {
+              return Files.newInputStream(file);
+            }
+          });
+        }
+      }
+
+      return load.finish();
+    }
+  }
+
+  public int[] importZip(final InputStream in, final String name, final int... parent)
+          throws SQLException, IOException {
+
+    ZipInputStream zip = new ZipInputStream(in);
+
+    try (Load load = new Load(name, parent)) {
+
+      ZipEntry entry;
+
+      while (null != (entry = zip.getNextEntry())) {
+
+        String[] names = names(entry.getName());
+
+        if (0 == names.length) {
+          continue;
+        }
+
+        if (entry.isDirectory()) {
+          load.directory(names);
+        } else {
+          load.file(names, zip);
+        }
+      }
+
+      return load.finish();
+    }
+  }
+
+  public int[] importTar(final InputStream in, final String name, final int... parent)
+          throws SQLException, IOException {
+
+    TarInputStream tar = new TarInputStream(in);
+
+    try (Load load = new Load(name, parent)) {
+
+      TarEntry entry;
+
+      while (null != (entry = tar.getNextEntry())) {
+
+        String[] names = names(entry.getName());
+
+        if (0 == names.length) {
+          continue;
+        }
+
+        if (entry.isDirectory()) {
+          load.directory(names);
+        } else {
+          load.file(names, tar);
+        }
+      }
+
+      return load.finish();
+    }
+  }
+
+  private final class Load implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final Map<String, Node> directories;
+    private final List<File> files;
+    private final List<Content> contents;
+    private final int[] root;
+    private long buffered;
+
+    private Load(final String name, final int... parent) throws SQLException, IOException {
+
+      this.executor = Executors.newFixedThreadPool(threads);
+      this.directories = new HashMap<>();
+      this.files = new ArrayList<>();
+      this.contents = new ArrayList<>();
+
+      FilesDAO dao = pool.borrow();
+      int c;
+
+      try {
+        c = dao.nextChild(parent);
+      } catch (final SQLException | RuntimeException ex) {
+        pool.release(dao, false);
+        throw ex;
+      }
+
+      pool.release(dao, true);
+
+      Node node = new Node(parent, key(parent, new Key()));
+      node.children = c - 1;
+
+      Node rootNode = add(node, name, null, 0);
+      this.root = rootNode.path;
+      directories.put("", rootNode);
+    }
+
+    private Node directory(final String[] names) throws SQLException, IOException {
+
+      return directory(names, names.length);
+    }
+
+    private Node directory(final String[] names, final int length) throws SQLException, IOException {
+
+      StringBuilder key = new StringBuilder();
+      Node node = directories.get("");
+
+      for (int i = 0; i < length; i++) {
+
+        key.append(FileSystem.SEPERATOR).append(names[i]);
+
+        Node child = directories.get(key.toString());
+        if (null == child) {
+          child = add(node, names[i], null, 0);
+          directories.put(key.toString(), child);
+        }
+
+        node = child;
+      }
+
+      return node;
+    }
+
+    private void file(final String[] names, final Content content) throws SQLException, IOException {
+
+      file(names, add(directory(names, names.length - 1), names[names.length - 1], content, 0));
+    }
+
+    private void file(final String[] names, final Node node) {
+
+      StringBuilder key = new StringBuilder();
+      for (String name : names) {
+        key.append(FileSystem.SEPERATOR).append(name);
+      }
+
+      directories.put(key.toString(), node);
+    }
+
+    /**
+     * Buffers small archive entries for parallel loading and loads larger ones
+     * in line, as the archive can only be read in order.
+     */
+    private void file(final String[] names, final InputStream in) throws SQLException, IOException {
+
+      Node parent = directory(names, names.length - 1);
+      String name = names[names.length - 1];
+
+      final byte[] bytes = head(in, ENTRY_BUFFER_SIZE);
+
+      if (bytes.length <= ENTRY_BUFFER_SIZE) {
+
+        buffered += bytes.length;
+        file(names, add(parent, name, new Content() {
+
+          @Override
+          public InputStream open() {
+            return new ByteArrayInputStream(bytes);
+          }
+        }, 0));
+
+        return;
+      }
+
+      FilesDAO dao = pool.borrow();
+      long oid;
+
+      try {
+        oid = dao.createContent();
+        Stream.copy(new SequenceInputStream(new ByteArrayInputStream(bytes), shield(in)), dao.getOutputStream(oid));
+      } catch (final SQLException | IOException | RuntimeException ex) {
+        pool.release(dao, false);
+        throw ex;
+      }
+
+      pool.release(dao, true);
+
+      file(names, add(parent, name, null, oid));
+    }
+
+    private Node add(final Node parent, final String name, final Content content, final long oid)
+            throws SQLException, IOException {
+
+      int c = ++parent.children;
+
+      int[] path = new int[parent.path.length + 1];
+      System.arraycopy(parent.path, 0, path, 0, parent.path.length);
+      path[parent.path.length] = c;
+
+      Key key = Keys.child(parent.key, c, new Key());
+
+      files.add(new File(binary(path), key.getBigNv(), key.getBigDv(),
+              binary(sibling(path)), key.getBigSnv(), key.getBigSdv(),
+              path.length, name, oid));
+      contents.add(content);
+
+      if (files.size() >= batchSize || buffered >= BUFFER_SIZE) {
+        flush();
+      }
+
+      return new Node(path, key);
+    }
+
+    private void flush() throws SQLException, IOException {
+
+      if (files.isEmpty()) {
+        return;
+      }
+
+      List<Future<Void>> futures = new ArrayList<>();
+      int chunk = (files.size() + threads - 1) / threads;
+
+      for (int i = 0; i < files.size(); i += chunk) {
+
+        final int from = i;
+        final int to = Math.min(i + chunk, files.size());
+
+        futures.add(executor.submit(new Callable<Void>() {
+
+          @Override
+          public Void call() throws SQLException, IOException {
+
+            load(from, to);
+
+            return null;
+          }
+        }));
+      }
+
+      for (Future<Void> future : futures) {
+
+        try {
+          future.get();
+        } catch (final InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new IOException(ie);
+        } catch (final ExecutionException ee) {
+          Throwable cause = ee.getCause();
+          if (cause instanceof SQLException) {
+            throw (SQLException) cause;
+          }
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          }
+          throw new IOException(cause);
+        }
+      }
+
+      FilesDAO dao = pool.borrow();
+
+      try {
+        dao.load(files);
+      } catch (final SQLException | RuntimeException ex) {
+        pool.release(dao, false);
+        throw ex;
+      }
+
+      pool.release(dao, true);
+
+      files.clear();
+      contents.clear();
+      buffered = 0;
+    }
+
+    private void load(final int from, final int to) throws SQLException, IOException {
+
+      FilesDAO dao = pool.borrow();
+
+      try {
+
+        for (int i = from; i < to; i++) {
+
+          File file = files.get(i);
+          Content content = contents.get(i);
+
+          if (0 != file.getContent() || null == content) {
+            continue;
+          }
+
+          InputStream in = content.open();
+          byte[] head;
+
+          try {
+            head = head(in, dao.getInlineSize());
+          } catch (final IOException | RuntimeException ex) {
+            in.close();
+            throw ex;
+          }
+
+          if (head.length <= dao.getInlineSize()) {
+            in.close();
+            file.setData(head);
+            continue;
+          }
+
+          long oid = dao.createContent();
+          Stream.copy(new SequenceInputStream(new ByteArrayInputStream(head), in), dao.getOutputStream(oid));
+          file.setContent(oid);
+        }
+
+      } catch (final SQLException | IOException | RuntimeException ex) {
+        pool.release(dao, false);
+        throw ex;
+      }
+
+      pool.release(dao, true);
+    }
+
+    private int[] finish() throws SQLException, IOException {
+
+      flush();
+
+      return root;
+    }
+
+    @Override
+    public void close() {
+
+      executor.shutdownNow();
+    }
+  }
+
+  private static String[] names(final java.nio.file.Path path) {
+
+    List<String> names = new ArrayList<>();
+
+    for (java.nio.file.Path name : path) {
+      if (!name.toString().isEmpty()) {
+        names.add(name.toString());
+      }
+    }
+
+    return names.toArray(new String[names.size()]);
+  }
+
+  private static String[] names(final String path) {
+
+    List<String> names = new ArrayList<>();
+
+    for (String name : path.split(FileSystem.SEPERATOR)) {
+      if (!name.isEmpty() && !".".equals(name)) {
+        names.add(name);
+      }
+    }
+
+    return names.toArray(new String[names.size()]);
+  }
+
+  /**
+   * Reads in until more than limit bytes have been read or it ends, leaving
+   * it open.
+   */
+  private static byte[] head(final InputStream in, final int limit) throws IOException {
+
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    byte[] b = new byte[8192];
+    int n;
+
+    while (head.size() <= limit && (n = in.read(b, 0, Math.min(b.length, limit + 1 - head.size()))) > 0) {
+      head.write(b, 0, n);
+    }
+
+    return head.toByteArray();
+  }
+
+  private static InputStream shield(final InputStream in) {
+
+    return new FilterInputStream(in) {
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+}
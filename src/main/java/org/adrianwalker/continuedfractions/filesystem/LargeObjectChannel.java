@@ -0,0 +1,220 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.sql.SQLException;
+import org.postgresql.largeobject.LargeObject;
+
+/**
+ * Seekable channel over a large object. The large object is only seeked when
+ * the channel's position differs from its own, so sequential reads and writes
+ * take one round trip each. The driver's large object API addresses 2 GB, so
+ * positions and sizes beyond that are refused.
+ */
+final class LargeObjectChannel implements SeekableByteChannel {
+
+  private final LargeObject obj;
+  private final boolean writable;
+  private final boolean append;
+  private long position;
+  private long cursor;
+  private boolean open = true;
+
+  LargeObjectChannel(final LargeObject obj, final boolean writable, final boolean append) {
+
+    this.obj = obj;
+    this.writable = writable;
+    this.append = append;
+  }
+
+  @Override
+  public int read(final ByteBuffer dst) throws IOException {
+
+    ensureOpen();
+
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+
+    byte[] b;
+    int off;
+
+    if (dst.hasArray()) {
+      b = dst.array();
+      off = dst.arrayOffset() + dst.position();
+    } else {
+      b = new byte[Math.min(dst.remaining(), LargeObjectStreams.BUFFER_SIZE)];
+      off = 0;
+    }
+
+    int n;
+
+    try {
+      seek();
+      n = obj.read(b, off, Math.min(dst.remaining(), b.length - off));
+    } catch (final SQLException sqle) {
+      throw new IOException(sqle);
+    }
+
+    if (0 == n) {
+      return -1;
+    }
+
+    if (dst.hasArray()) {
+      dst.position(dst.position() + n);
+    } else {
+      dst.put(b, 0, n);
+    }
+
+    position += n;
+    cursor = position;
+
+    return n;
+  }
+
+  @Override
+  public int write(final ByteBuffer src) throws IOException {
+
+    ensureOpen();
+
+    if (!writable) {
+      throw new NonWritableChannelException();
+    }
+
+    int n = src.remaining();
+
+    try {
+
+      if (append) {
+        position = obj.size();
+      }
+
+      check(position + n);
+      seek();
+
+      if (src.hasArray()) {
+        obj.write(src.array(), src.arrayOffset() + src.position(), n);
+        src.position(src.position() + n);
+      } else {
+        byte[] b = new byte[n];
+        src.get(b);
+        obj.write(b, 0, n);
+      }
+
+    } catch (final SQLException sqle) {
+      throw new IOException(sqle);
+    }
+
+    position += n;
+    cursor = position;
+
+    return n;
+  }
+
+  @Override
+  public long position() throws IOException {
+
+    ensureOpen();
+
+    return position;
+  }
+
+  @Override
+  public SeekableByteChannel position(final long newPosition) throws IOException {
+
+    ensureOpen();
+
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("negative position: " + newPosition);
+    }
+
+    check(newPosition);
+    position = newPosition;
+
+    return this;
+  }
+
+  @Override
+  public long size() throws IOException {
+
+    ensureOpen();
+
+    try {
+      return obj.size();
+    } catch (final SQLException sqle) {
+      throw new IOException(sqle);
+    }
+  }
+
+  @Override
+  public SeekableByteChannel truncate(final long size) throws IOException {
+
+    ensureOpen();
+
+    if (!writable) {
+      throw new NonWritableChannelException();
+    }
+
+    if (size < 0) {
+      throw new IllegalArgumentException("negative size: " + size);
+    }
+
+    try {
+      if (size < obj.size()) {
+        obj.truncate((int) size);
+      }
+    } catch (final SQLException sqle) {
+      throw new IOException(sqle);
+    }
+
+    position = Math.min(position, size);
+
+    return this;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() throws IOException {
+
+    if (!open) {
+      return;
+    }
+
+    open = false;
+
+    try {
+      obj.close();
+    } catch (final SQLException sqle) {
+      throw new IOException(sqle);
+    }
+  }
+
+  private void seek() throws SQLException {
+
+    if (cursor != position) {
+      obj.seek((int) position);
+      cursor = position;
+    }
+  }
+
+  private void ensureOpen() throws ClosedChannelException {
+
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  private static void check(final long position) throws IOException {
+
+    if (position > Integer.MAX_VALUE) {
+      throw new IOException("position beyond large object API limit: " + position);
+    }
+  }
+}
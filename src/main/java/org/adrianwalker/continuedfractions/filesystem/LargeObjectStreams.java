@@ -0,0 +1,104 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import org.postgresql.largeobject.LargeObject;
+
+/**
+ * Buffered streams over large objects. Reads and writes of at least a buffer
+ * go straight to the large object without an intermediate copy, smaller ones
+ * are gathered into whole buffers of large object pages.
+ */
+final class LargeObjectStreams {
+
+  static final int PAGE_SIZE = 2048;
+  static final int BUFFER_SIZE = 32 * PAGE_SIZE;
+
+  private LargeObjectStreams() {
+  }
+
+  static InputStream inputStream(final LargeObject obj) {
+
+    return new BufferedInputStream(new InputStream() {
+
+      @Override
+      public int read() throws IOException {
+
+        byte[] b = new byte[1];
+
+        return -1 == read(b, 0, 1) ? -1 : b[0] & 0xFF;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len) throws IOException {
+
+        if (0 == len) {
+          return 0;
+        }
+
+        try {
+          int n = obj.read(b, off, len);
+          return 0 == n ? -1 : n;
+        } catch (final SQLException sqle) {
+          throw new IOException(sqle);
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+
+        try {
+          obj.close();
+        } catch (final SQLException sqle) {
+          throw new IOException(sqle);
+        }
+      }
+    }, BUFFER_SIZE);
+  }
+
+  static OutputStream outputStream(final LargeObject obj) {
+
+    return new BufferedOutputStream(new OutputStream() {
+
+      @Override
+      public void write(final int b) throws IOException {
+
+        write(new byte[]{(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(final byte[] b, final int off, final int len) throws IOException {
+
+        try {
+          obj.write(b, off, len);
+        } catch (final SQLException sqle) {
+          throw new IOException(sqle);
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+
+        try {
+          obj.close();
+        } catch (final SQLException sqle) {
+          throw new IOException(sqle);
+        }
+      }
+    }, BUFFER_SIZE);
+  }
+
+  static void copy(final LargeObject from, final LargeObject to) throws SQLException {
+
+    byte[] b = new byte[BUFFER_SIZE];
+    int n;
+
+    while ((n = from.read(b, 0, b.length)) > 0) {
+      to.write(b, 0, n);
+    }
+  }
+}
@@ -0,0 +1,659 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory copy of the files table held off the heap, for trees that are
+ * read far more often than they are written. Each file is a record in a
+ * direct buffer, and a second direct buffer holds the records' offsets in id
+ * order, so a subtree is a run of offsets found by binary search and
+ * children are found by jumping from each child to its sibling key. Records
+ * are only appended, the space of replaced records being reclaimed when it
+ * outgrows the live records.
+ *
+ * DAOs sharing a mirror write through it: each commit reloads the key ranges
+ * the transaction wrote, and a DAO answers reads from the mirror while its
+ * transaction has written nothing and is not repeatable read, as the mirror
+ * is not a snapshot. Every writer to the files table must share
+ * the mirror. Children are ordered by code point, the order of the
+ * database's C collation on UTF-8 names.
+ */
+public final class MetadataMirror {
+
+  private static final int INDEX_SIZE = 1024;
+  private static final int RECORDS_SIZE = 64 * 1024;
+  private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+  private static final byte HIDDEN = 1;
+  private static final int LEVEL = 4;
+  private static final int CONTENT = 8;
+  private static final int FLAGS = 16;
+  private static final int ID = 17;
+  private static final Comparator<File> BY_NAME = new Comparator<File>() {
+
+    @Override
+    public int compare(final File f1, final File f2) {
+
+      String n1 = f1.getName();
+      String n2 = f2.getName();
+      int i = 0;
+
+      while (i < n1.length() && i < n2.length()) {
+
+        int c1 = n1.codePointAt(i);
+        int c2 = n2.codePointAt(i);
+
+        if (c1 != c2) {
+          return Integer.compare(c1, c2);
+        }
+
+        i += Character.charCount(c1);
+      }
+
+      return Integer.compare(n1.length(), n2.length());
+    }
+  };
+
+  /**
+   * Replaces the files in a key range, taking the mirror's write lock until
+   * it is closed. Files are added in id order and replace the range's files
+   * when committed.
+   */
+  final class Update implements AutoCloseable {
+
+    private final byte[] low;
+    private final byte[] high;
+    private final int mark;
+    private int[] offsets = new int[16];
+    private int n;
+    private boolean closed;
+
+    private Update(final byte[] low, final byte[] high) {
+
+      lock.writeLock().lock();
+
+      this.low = low;
+      this.high = high;
+      this.mark = end;
+    }
+
+    void add(final File file, final boolean hidden) {
+
+      byte[] name = file.getName().getBytes(StandardCharsets.UTF_8);
+      byte[][] fields = {
+        file.getId(), file.getSid(),
+        file.getNv().toByteArray(), file.getDv().toByteArray(),
+        file.getSnv().toByteArray(), file.getSdv().toByteArray(),
+        name
+      };
+
+      long length = ID + 4;
+      for (byte[] field : fields) {
+        length += 4 + field.length;
+      }
+      if (null != file.getData()) {
+        length += file.getData().length;
+      }
+
+      ensureRecords(length);
+
+      int offset = end;
+      records.putInt(offset, (int) length);
+      records.putInt(offset + LEVEL, file.getLevel());
+      records.putLong(offset + CONTENT, file.getContent());
+      records.put(offset + FLAGS, hidden ? HIDDEN : 0);
+
+      int position = offset + ID;
+      for (byte[] field : fields) {
+        position = put(position, field);
+      }
+
+      if (null == file.getData()) {
+        records.putInt(position, -1);
+      } else {
+        put(position, file.getData());
+      }
+
+      end += (int) length;
+
+      if (n == offsets.length) {
+        offsets = Arrays.copyOf(offsets, 2 * n);
+      }
+
+      offsets[n++] = offset;
+    }
+
+    void commit() {
+
+      int from = lowerBound(low, 0, count);
+      int to = lowerBound(high, from, count);
+
+      for (int i = from; i < to; i++) {
+        garbage += records.getInt(offset(i));
+      }
+
+      int tail = count - to;
+      int shift = n - (to - from);
+
+      ensureIndex((long) count + shift);
+
+      if (shift > 0) {
+        for (int i = tail - 1; i >= 0; i--) {
+          index.putInt(4 * (to + shift + i), offset(to + i));
+        }
+      } else if (shift < 0) {
+        for (int i = 0; i < tail; i++) {
+          index.putInt(4 * (to + shift + i), offset(to + i));
+        }
+      }
+
+      for (int i = 0; i < n; i++) {
+        index.putInt(4 * (from + i), offsets[i]);
+      }
+
+      count += shift;
+      closed = true;
+
+      if (garbage > end / 2) {
+        compact();
+      }
+
+      lock.writeLock().unlock();
+    }
+
+    /**
+     * Drops the files added if the update was not committed.
+     */
+    @Override
+    public void close() {
+
+      if (closed) {
+        return;
+      }
+
+      closed = true;
+      end = mark;
+
+      lock.writeLock().unlock();
+    }
+  }
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private ByteBuffer index;
+  private ByteBuffer records;
+  private int count;
+  private int end;
+  private int garbage;
+  private volatile boolean loaded;
+  private volatile Exception failure;
+
+  public MetadataMirror() {
+
+    this.index = ByteBuffer.allocateDirect(4 * INDEX_SIZE);
+    this.records = ByteBuffer.allocateDirect(RECORDS_SIZE);
+  }
+
+  /**
+   * Returns true once the mirror holds the whole files table, see
+   * FilesDAO.loadMirror.
+   */
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  /**
+   * Returns the failure that last dropped the mirror's contents, if any.
+   */
+  public Exception getLastFailure() {
+    return failure;
+  }
+
+  /**
+   * Returns the number of files mirrored.
+   */
+  public int size() {
+
+    lock.readLock().lock();
+
+    try {
+      return count;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the bytes allocated off the heap.
+   */
+  public long getCapacity() {
+
+    lock.readLock().lock();
+
+    try {
+      return (long) index.capacity() + records.capacity();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Drops the mirror's contents, so DAOs read from the database until it is
+   * loaded again.
+   */
+  public void clear() {
+
+    lock.writeLock().lock();
+
+    try {
+      loaded = false;
+      count = 0;
+      end = 0;
+      garbage = 0;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  void clear(final Exception failure) {
+
+    this.failure = failure;
+    clear();
+  }
+
+  void setLoaded(final boolean loaded) {
+    this.loaded = loaded;
+  }
+
+  Update update(final byte[] low, final byte[] high) {
+
+    return new Update(low, high);
+  }
+
+  File read(final byte[] id) {
+
+    lock.readLock().lock();
+
+    try {
+
+      int i = lowerBound(id, 0, count);
+
+      if (i < count && 0 == compareId(offset(i), id) && !hidden(offset(i))) {
+        return toFile(offset(i));
+      }
+
+      return null;
+
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns up to limit visible files with ids in [id, sid) after the id
+   * after, all of them if limit is negative, in id order.
+   */
+  File[] tree(final byte[] id, final byte[] sid, final byte[] after, final int limit) {
+
+    lock.readLock().lock();
+
+    try {
+
+      int to = lowerBound(sid, 0, count);
+      int i = lowerBound(id, 0, to);
+
+      if (null != after) {
+
+        i = lowerBound(after, i, to);
+
+        if (i < to && 0 == compareId(offset(i), after)) {
+          i++;
+        }
+      }
+
+      List<File> files = new ArrayList<>();
+
+      for (; i < to && files.size() != limit; i++) {
+
+        int offset = offset(i);
+
+        if (!hidden(offset)) {
+          files.add(toFile(offset));
+        }
+      }
+
+      return files.toArray(new File[files.size()]);
+
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the visible children at level of the file with key range
+   * [id, sid), in name order.
+   */
+  File[] children(final byte[] id, final byte[] sid, final int level) {
+
+    lock.readLock().lock();
+
+    try {
+
+      List<File> files = new ArrayList<>();
+      int to = lowerBound(sid, 0, count);
+      int i = lowerBound(id, 0, to);
+
+      while (i < to) {
+
+        int offset = offset(i);
+
+        if (level(offset) != level) {
+          i++;
+          continue;
+        }
+
+        if (!hidden(offset)) {
+          files.add(toFile(offset));
+        }
+
+        i = lowerBound(bytes(sidPosition(offset)), i + 1, to);
+      }
+
+      Collections.sort(files, BY_NAME);
+
+      return files.toArray(new File[files.size()]);
+
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the visible child named name at level of the file with key range
+   * [id, sid).
+   */
+  File child(final String name, final byte[] id, final byte[] sid, final int level) {
+
+    lock.readLock().lock();
+
+    try {
+      int offset = child(name.getBytes(StandardCharsets.UTF_8), id, sid, level);
+      return -1 == offset ? null : toFile(offset);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Resolves names level by level under the file with key range [id, sid) at
+   * level, returning the file for each name until the first name that does
+   * not exist.
+   */
+  File[] resolve(final String[] names, final byte[] id, final byte[] sid, final int level) {
+
+    lock.readLock().lock();
+
+    try {
+
+      List<File> files = new ArrayList<>();
+      byte[] parentId = id;
+      byte[] parentSid = sid;
+
+      for (int i = 0; i < names.length; i++) {
+
+        int offset = child(names[i].getBytes(StandardCharsets.UTF_8), parentId, parentSid, level + i + 1);
+
+        if (-1 == offset) {
+          break;
+        }
+
+        File file = toFile(offset);
+        files.add(file);
+        parentId = file.getId();
+        parentSid = file.getSid();
+      }
+
+      return files.toArray(new File[files.size()]);
+
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private int child(final byte[] name, final byte[] id, final byte[] sid, final int level) {
+
+    int to = lowerBound(sid, 0, count);
+    int i = lowerBound(id, 0, to);
+
+    while (i < to) {
+
+      int offset = offset(i);
+
+      if (level(offset) != level) {
+        i++;
+        continue;
+      }
+
+      if (!hidden(offset) && equalsName(offset, name)) {
+        return offset;
+      }
+
+      i = lowerBound(bytes(sidPosition(offset)), i + 1, to);
+    }
+
+    return -1;
+  }
+
+  private int offset(final int i) {
+    return index.getInt(4 * i);
+  }
+
+  private int level(final int offset) {
+    return records.getInt(offset + LEVEL);
+  }
+
+  private boolean hidden(final int offset) {
+    return HIDDEN == records.get(offset + FLAGS);
+  }
+
+  private int sidPosition(final int offset) {
+    return skip(offset + ID);
+  }
+
+  private int namePosition(final int offset) {
+
+    int position = sidPosition(offset);
+    for (int i = 0; i < 5; i++) {
+      position = skip(position);
+    }
+
+    return position;
+  }
+
+  private int skip(final int position) {
+    return position + 4 + records.getInt(position);
+  }
+
+  private byte[] bytes(final int position) {
+
+    int length = records.getInt(position);
+
+    if (-1 == length) {
+      return null;
+    }
+
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; i++) {
+      b[i] = records.get(position + 4 + i);
+    }
+
+    return b;
+  }
+
+  private int put(final int position, final byte[] b) {
+
+    records.putInt(position, b.length);
+    for (int i = 0; i < b.length; i++) {
+      records.put(position + 4 + i, b[i]);
+    }
+
+    return position + 4 + b.length;
+  }
+
+  /**
+   * Returns the index of the first file in [from, to) with an id not less
+   * than id.
+   */
+  private int lowerBound(final byte[] id, final int from, final int to) {
+
+    int low = from;
+    int high = to;
+
+    while (low < high) {
+
+      int mid = (low + high) >>> 1;
+
+      if (compareId(offset(mid), id) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+
+    return low;
+  }
+
+  private int compareId(final int offset, final byte[] id) {
+
+    int position = offset + ID;
+    int length = records.getInt(position);
+    int n = Math.min(length, id.length);
+
+    for (int i = 0; i < n; i++) {
+      int c = (records.get(position + 4 + i) & 0xFF) - (id[i] & 0xFF);
+      if (0 != c) {
+        return c;
+      }
+    }
+
+    return length - id.length;
+  }
+
+  private boolean equalsName(final int offset, final byte[] name) {
+
+    int position = namePosition(offset);
+
+    if (records.getInt(position) != name.length) {
+      return false;
+    }
+
+    for (int i = 0; i < name.length; i++) {
+      if (records.get(position + 4 + i) != name[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private File toFile(final int offset) {
+
+    int position = offset + ID;
+
+    byte[] id = bytes(position);
+    position = skip(position);
+    byte[] sid = bytes(position);
+    position = skip(position);
+    BigInteger nv = new BigInteger(bytes(position));
+    position = skip(position);
+    BigInteger dv = new BigInteger(bytes(position));
+    position = skip(position);
+    BigInteger snv = new BigInteger(bytes(position));
+    position = skip(position);
+    BigInteger sdv = new BigInteger(bytes(position));
+    position = skip(position);
+    String name = new String(bytes(position), StandardCharsets.UTF_8);
+    position = skip(position);
+
+    File file = new File(id, nv, dv, sid, snv, sdv, level(offset), name, records.getLong(offset + CONTENT));
+    file.setData(bytes(position));
+
+    return file;
+  }
+
+  private void ensureIndex(final long size) {
+
+    if (4 * size <= index.capacity()) {
+      return;
+    }
+
+    ByteBuffer grown = ByteBuffer.allocateDirect(capacity(index.capacity(), 4 * size));
+
+    for (int i = 0; i < count; i++) {
+      grown.putInt(4 * i, offset(i));
+    }
+
+    index = grown;
+  }
+
+  private void ensureRecords(final long length) {
+
+    if (end + length <= records.capacity()) {
+      return;
+    }
+
+    ByteBuffer grown = ByteBuffer.allocateDirect(capacity(records.capacity(), end + length));
+
+    ByteBuffer used = records.duplicate();
+    used.position(0).limit(end);
+    grown.put(used);
+
+    records = grown;
+  }
+
+  /**
+   * Copies the live records, in id order, to a buffer twice their size.
+   */
+  private void compact() {
+
+    int live = end - garbage;
+    ByteBuffer compacted = ByteBuffer.allocateDirect(Math.max(RECORDS_SIZE, capacity(0, 2L * live)));
+    int position = 0;
+
+    for (int i = 0; i < count; i++) {
+
+      int offset = offset(i);
+      int length = records.getInt(offset);
+
+      ByteBuffer record = records.duplicate();
+      record.position(offset).limit(offset + length);
+      compacted.position(position);
+      compacted.put(record);
+
+      index.putInt(4 * i, position);
+      position += length;
+    }
+
+    records = compacted;
+    end = position;
+    garbage = 0;
+  }
+
+  private static int capacity(final int capacity, final long size) {
+
+    long grown = Math.max(2L * capacity, size);
+
+    if (size > MAX_CAPACITY) {
+      throw new IllegalStateException("mirror full: " + size);
+    }
+
+    return (int) Math.min(grown, MAX_CAPACITY);
+  }
+}
@@ -0,0 +1,190 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.sql.DataSource;
+import static org.adrianwalker.continuedfractions.Fraction.binary;
+
+/**
+ * Hands out child ordinals per parent from blocks reserved in the ordinals
+ * table. Blocks are reserved in their own autocommitted transaction, so a
+ * reservation never waits on, or is rolled back with, a file system
+ * transaction, and threads only contend on the block of the parent they are
+ * creating under. Ordinals are never handed out twice, leaving gaps where a
+ * block is abandoned or a create rolls back. Every writer creating children
+ * under a parent must allocate ordinals from the ordinals table.
+ *
+ * Reservations are made on a connection the allocator takes from the
+ * DataSource when it is created and holds until it is closed, so callers
+ * holding pooled connections never wait on the DataSource for another. A
+ * bounded pooling DataSource must allow one connection per allocator on top
+ * of those its DAOs use. The blocks of the least recently used parents are
+ * dropped once more than a bounded number of parents hold one.
+ */
+public final class OrdinalAllocator implements AutoCloseable {
+
+  private static final String RESERVE
+          = "insert into ordinals as o (id, last) "
+          + "select ?, coalesce(max(div(c.nv, c.snv - c.nv)), 0)::integer + ? "
+          + "from ("
+          + "select nv, snv "
+          + "from files "
+          + "where id > ? "
+          + "and id < ? "
+          + "and level = ? "
+          + "order by id desc "
+          + "limit 1) c "
+          + "on conflict (id) do update "
+          + "set last = greatest(o.last + ?, excluded.last) "
+          + "returning last";
+  private static final int MAX_BLOCKS = 4096;
+
+  private static final class Block {
+
+    private int next;
+    private int last;
+  }
+
+  private final DataSource dataSource;
+  private final int blockSize;
+  private final Map<String, Block> blocks;
+  private Connection connection;
+
+  public OrdinalAllocator(final DataSource dataSource, final int blockSize) throws SQLException {
+
+    this.dataSource = dataSource;
+    this.blockSize = blockSize;
+    this.blocks = new LinkedHashMap<String, Block>(16, 0.75f, true) {
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, Block> eldest) {
+        return size() > MAX_BLOCKS;
+      }
+    };
+    this.connection = connect();
+  }
+
+  public int next(final int... parent) throws SQLException {
+
+    String key = PathCache.key(parent);
+    Block block;
+
+    synchronized (blocks) {
+
+      block = blocks.get(key);
+
+      if (null == block) {
+        block = new Block();
+        blocks.put(key, block);
+      }
+    }
+
+    synchronized (block) {
+
+      if (block.next == block.last) {
+        block.last = reserve(parent);
+        block.next = block.last - blockSize;
+      }
+
+      return ++block.next;
+    }
+  }
+
+  /**
+   * Drops the blocks held for path and the paths below it, as when the
+   * subtree at path is moved away or another subtree is moved to path.
+   */
+  public void reset(final int... path) {
+
+    String key = PathCache.key(path);
+    String prefix = key + ".";
+
+    synchronized (blocks) {
+
+      if (0 == path.length) {
+        blocks.clear();
+        return;
+      }
+
+      Iterator<String> i = blocks.keySet().iterator();
+
+      while (i.hasNext()) {
+
+        String k = i.next();
+
+        if (k.equals(key) || k.startsWith(prefix)) {
+          i.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes the allocator's connection.
+   */
+  @Override
+  public synchronized void close() throws SQLException {
+
+    if (null != connection) {
+      connection.close();
+      connection = null;
+    }
+  }
+
+  /**
+   * Reserves a block on the allocator's connection, which is replaced if a
+   * reservation fails, as it may be broken.
+   */
+  private synchronized int reserve(final int[] parent) throws SQLException {
+
+    byte[] id = binary(parent);
+
+    if (null == connection) {
+      connection = connect();
+    }
+
+    try (PreparedStatement reserve = connection.prepareStatement(RESERVE)) {
+
+      reserve.setBytes(1, id);
+      reserve.setInt(2, blockSize);
+      reserve.setBytes(3, id);
+      reserve.setBytes(4, FilesDAO.sid(parent));
+      reserve.setInt(5, parent.length + 1);
+      reserve.setInt(6, blockSize);
+
+      try (ResultSet rs = reserve.executeQuery()) {
+        rs.next();
+        return rs.getInt(1);
+      }
+
+    } catch (final SQLException sqle) {
+
+      try {
+        close();
+      } catch (final SQLException closing) {
+        sqle.addSuppressed(closing);
+      }
+
+      throw sqle;
+    }
+  }
+
+  private Connection connect() throws SQLException {
+
+    Connection c = dataSource.getConnection();
+
+    try {
+      c.setAutoCommit(true);
+    } catch (final SQLException sqle) {
+      c.close();
+      throw sqle;
+    }
+
+    return c;
+  }
+}
@@ -24,4 +24,30 @@ public class Path {
 
     return Arrays.copyOfRange(path, from, to);
   }
+
+  public static int[][] ancestors(final int[] path) {
+
+    int[][] ancestors = new int[Math.max(path.length - 1, 0)][];
+
+    for (int i = 0; i < ancestors.length; i++) {
+      ancestors[i] = range(path, 0, i + 1);
+    }
+
+    return ancestors;
+  }
+
+  public static int[] commonAncestor(final int[] a, final int[] b) {
+
+    int length = 0;
+    while (length < a.length && length < b.length && a[length] == b[length]) {
+      length++;
+    }
+
+    return range(a, 0, length);
+  }
+
+  public static boolean isDescendant(final int[] a, final int[] b) {
+
+    return a.length > b.length && Arrays.equals(range(a, 0, b.length), b);
+  }
 }
@@ -0,0 +1,219 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Size bounded, least recently used cache of resolved paths. Entries are also
+ * indexed by file id, so a change to a subtree invalidates exactly the entries
+ * whose ids fall in the subtree's key interval.
+ *
+ * Each invalidation advances the cache's generation and is logged, so an
+ * entry read from the database at one generation is only put if no later
+ * invalidation covers it, and a reader racing a writer cannot put back a row
+ * the writer has replaced.
+ */
+public final class PathCache {
+
+  private static final int LOG_SIZE = 1024;
+
+  private static final class Invalidation {
+
+    private final long generation;
+    private final byte[] id;
+    private final byte[] sid;
+
+    private Invalidation(final long generation, final byte[] id, final byte[] sid) {
+
+      this.generation = generation;
+      this.id = id;
+      this.sid = sid;
+    }
+  }
+
+  static final Comparator<byte[]> UNSIGNED = new Comparator<byte[]>() {
+
+    @Override
+    public int compare(final byte[] b1, final byte[] b2) {
+
+      int n = Math.min(b1.length, b2.length);
+
+      for (int i = 0; i < n; i++) {
+        int c = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+        if (0 != c) {
+          return c;
+        }
+      }
+
+      return b1.length - b2.length;
+    }
+  };
+
+  private final Map<String, File> files;
+  private final NavigableMap<byte[], Set<String>> ids;
+  private final Deque<Invalidation> log;
+  private long generation;
+  private long forgotten;
+  private long hits;
+  private long misses;
+
+  public PathCache(final int size) {
+
+    this.ids = new TreeMap<>(UNSIGNED);
+    this.log = new ArrayDeque<>();
+    this.files = new LinkedHashMap<String, File>(16, 0.75f, true) {
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, File> eldest) {
+
+        if (size() > size) {
+          unindex(eldest.getKey(), eldest.getValue());
+          return true;
+        }
+
+        return false;
+      }
+    };
+  }
+
+  public static String key(final int[] path) {
+
+    StringBuilder key = new StringBuilder();
+
+    for (int i = 0; i < path.length; i++) {
+      key.append(i > 0 ? "." : "").append(path[i]);
+    }
+
+    return key.toString();
+  }
+
+  public static String key(final String parent, final String name) {
+
+    return parent + FileSystem.SEPERATOR + name;
+  }
+
+  public synchronized File get(final String key) {
+
+    File file = files.get(key);
+
+    if (null == file) {
+      misses++;
+    } else {
+      hits++;
+    }
+
+    return file;
+  }
+
+  /**
+   * Returns the current generation, to be taken before reading the files
+   * later put with it.
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Puts a file read from the database at generation, unless it has been
+   * invalidated since, returning true if it was put.
+   */
+  public synchronized boolean put(final String key, final File file, final long generation) {
+
+    if (generation < forgotten) {
+      return false;
+    }
+
+    for (Invalidation invalidation : log) {
+      if (invalidation.generation > generation
+              && UNSIGNED.compare(invalidation.id, file.getId()) <= 0
+              && UNSIGNED.compare(invalidation.sid, file.getId()) > 0) {
+        return false;
+      }
+    }
+
+    put(key, file);
+
+    return true;
+  }
+
+  public synchronized void put(final String key, final File file) {
+
+    File old = files.put(key, file);
+
+    if (null != old) {
+      unindex(key, old);
+    }
+
+    Set<String> keys = ids.get(file.getId());
+    if (null == keys) {
+      keys = new HashSet<>();
+      ids.put(file.getId(), keys);
+    }
+
+    keys.add(key);
+  }
+
+  public synchronized int invalidate(final byte[] id, final byte[] sid) {
+
+    int invalidated = 0;
+
+    log.addLast(new Invalidation(++generation, id, sid));
+    if (log.size() > LOG_SIZE) {
+      forgotten = log.removeFirst().generation;
+    }
+
+    Iterator<Set<String>> i = ids.subMap(id, true, sid, false).values().iterator();
+
+    while (i.hasNext()) {
+
+      for (String key : i.next()) {
+        files.remove(key);
+        invalidated++;
+      }
+
+      i.remove();
+    }
+
+    return invalidated;
+  }
+
+  public synchronized void clear() {
+
+    forgotten = ++generation;
+    log.clear();
+    files.clear();
+    ids.clear();
+  }
+
+  public synchronized int size() {
+    return files.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  private void unindex(final String key, final File file) {
+
+    Set<String> keys = ids.get(file.getId());
+
+    if (null != keys) {
+      keys.remove(key);
+      if (keys.isEmpty()) {
+        ids.remove(file.getId());
+      }
+    }
+  }
+}
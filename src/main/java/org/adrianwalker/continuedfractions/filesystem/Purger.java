@@ -0,0 +1,180 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reclaims trashed subtrees and orphaned content off the request path.
+ * Trashed subtrees are removed in batches of files, each batch in its own
+ * transaction followed by a pause, so reclamation holds locks briefly and
+ * its I/O is spread out. Content is released once no file refers to it in
+ * two consecutive scans, leaving content written ahead of its files, as the
+ * Importer writes it, for the files to be written.
+ */
+public final class Purger implements AutoCloseable {
+
+  private static final int TRASH_BATCH_SIZE = 16;
+
+  private final FilesDAOPool pool;
+  private final int batchSize;
+  private final long pause;
+  private final ScheduledExecutorService executor;
+  private long[] candidates = new long[0];
+  private volatile Exception failure;
+
+  /**
+   * Creates a purger removing up to batchSize files or contents per
+   * transaction, pausing for pause milliseconds after each.
+   */
+  public Purger(final FilesDAOPool pool, final int batchSize, final long pause) {
+
+    this.pool = pool;
+    this.batchSize = batchSize;
+    this.pause = pause;
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+      @Override
+      public Thread newThread(final Runnable r) {
+
+        Thread thread = new Thread(r, "purger");
+        thread.setDaemon(true);
+
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Runs purge and reclaimOrphans every period on a background thread. A
+   * failed run is kept as the last failure and retried next period.
+   */
+  public void start(final long period, final TimeUnit unit) {
+
+    executor.scheduleWithFixedDelay(new Runnable() {
+
+      @Override
+      public void run() {
+
+        try {
+          purge();
+          reclaimOrphans();
+        } catch (final SQLException | RuntimeException ex) {
+          failure = ex;
+        } catch (final InterruptedException ie) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, period, period, unit);
+  }
+
+  public Exception getLastFailure() {
+    return failure;
+  }
+
+  /**
+   * Removes the trashed subtrees, oldest first, returning the number of files
+   * removed.
+   */
+  public synchronized long purge() throws SQLException, InterruptedException {
+
+    long purged = 0;
+    int[][] trashed;
+
+    do {
+
+      trashed = trashed();
+
+      for (int[] path : trashed) {
+
+        int n;
+
+        do {
+          n = purge(path);
+          purged += n;
+          pause();
+        } while (n > 0);
+      }
+
+    } while (trashed.length == TRASH_BATCH_SIZE);
+
+    return purged;
+  }
+
+  /**
+   * Releases content that no file referred to in the last scan and still
+   * does not, then scans for the next candidates, returning the number of
+   * contents released.
+   */
+  public synchronized int reclaimOrphans() throws SQLException {
+
+    int released = 0;
+    FilesDAO dao = pool.borrow();
+
+    try {
+
+      if (candidates.length > 0) {
+        released = dao.reclaimOrphans(candidates);
+      }
+
+      candidates = dao.orphans(batchSize);
+
+    } catch (final SQLException | RuntimeException ex) {
+      pool.release(dao, false);
+      throw ex;
+    }
+
+    pool.release(dao, true);
+
+    return released;
+  }
+
+  private int[][] trashed() throws SQLException {
+
+    FilesDAO dao = pool.borrow();
+    int[][] trashed;
+
+    try {
+      trashed = dao.trashed(TRASH_BATCH_SIZE);
+    } catch (final SQLException | RuntimeException ex) {
+      pool.release(dao, false);
+      throw ex;
+    }
+
+    pool.release(dao, true);
+
+    return trashed;
+  }
+
+  private int purge(final int[] path) throws SQLException {
+
+    FilesDAO dao = pool.borrow();
+    int n;
+
+    try {
+      n = dao.purge(path, batchSize);
+    } catch (final SQLException | RuntimeException ex) {
+      pool.release(dao, false);
+      throw ex;
+    }
+
+    pool.release(dao, true);
+
+    return n;
+  }
+
+  private void pause() throws InterruptedException {
+
+    if (pause > 0) {
+      Thread.sleep(pause);
+    }
+  }
+
+  @Override
+  public void close() {
+
+    executor.shutdownNow();
+  }
+}
@@ -8,29 +8,49 @@ import java.io.OutputStream;
 
 public final class Stream {
 
-  private static final int BUFFER_SIZE = 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
   private static final String ENCODING = "UTF-8";
+  private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+
+    @Override
+    protected byte[] initialValue() {
+      return new byte[BUFFER_SIZE];
+    }
+  };
 
   private Stream() {
   }
 
+  /**
+   * Copies in to out through a buffer reused by the calling thread, closing
+   * both.
+   */
   public static void copy(final InputStream in, final OutputStream out) throws IOException {
 
-    byte[] b = new byte[BUFFER_SIZE];
+    copy(in, out, BUFFER.get());
+  }
+
+  /**
+   * Copies in to out through buffer, closing both. Out is flushed once, when
+   * it is closed.
+   */
+  public static void copy(final InputStream in, final OutputStream out, final byte[] buffer) throws IOException {
+
     int n;
 
     try {
 
-      while ((n = in.read(b)) > 0) {
-
-        out.write(b, 0, n);
-        out.flush();
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
       }
 
     } finally {
 
-      in.close();
-      out.close();
+      try {
+        in.close();
+      } finally {
+        out.close();
+      }
     }
   }
 
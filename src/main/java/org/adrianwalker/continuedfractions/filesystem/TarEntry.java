@@ -0,0 +1,27 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+public final class TarEntry {
+
+  private final String name;
+  private final long size;
+  private final boolean directory;
+
+  public TarEntry(final String name, final long size, final boolean directory) {
+
+    this.name = name;
+    this.size = size;
+    this.directory = directory;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public boolean isDirectory() {
+    return directory;
+  }
+}
@@ -0,0 +1,280 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads file and directory entries from a ustar, GNU or pax tar stream. Like
+ * ZipInputStream, each entry's content is read from this stream until the
+ * next call to getNextEntry. Other entry types, such as links, are skipped.
+ */
+public final class TarInputStream extends FilterInputStream {
+
+  static final int BLOCK_SIZE = 512;
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String PAX_PATH = "path=";
+
+  private long remaining;
+  private long padding;
+
+  public TarInputStream(final InputStream in) {
+    super(in);
+  }
+
+  public TarEntry getNextEntry() throws IOException {
+
+    String longName = null;
+    byte[] header = new byte[BLOCK_SIZE];
+
+    while (true) {
+
+      skipFully(remaining + padding);
+      remaining = 0;
+      padding = 0;
+
+      if (!readBlock(header) || empty(header)) {
+        return null;
+      }
+
+      long size = number(header, 124, 12);
+      byte type = header[156];
+
+      remaining = size;
+      padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+
+      switch (type) {
+
+        case 'L':
+          byte[] name = content(size);
+          longName = string(name, 0, name.length);
+          break;
+
+        case 'x':
+          String path = pax(content(size));
+          if (null != path) {
+            longName = path;
+          }
+          break;
+
+        case '5':
+          return new TarEntry(null == longName ? name(header) : longName, 0, true);
+
+        case '0':
+        case '7':
+        case 0:
+          return new TarEntry(null == longName ? name(header) : longName, size, false);
+
+        default:
+          longName = null;
+      }
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+
+    if (0 == remaining) {
+      return -1;
+    }
+
+    int b = in.read();
+
+    if (b >= 0) {
+      remaining--;
+    }
+
+    return b;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+
+    if (0 == remaining) {
+      return -1;
+    }
+
+    int n = in.read(b, off, (int) Math.min(len, remaining));
+
+    if (n > 0) {
+      remaining -= n;
+    }
+
+    return n;
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+
+    long skipped = in.skip(Math.min(n, remaining));
+    remaining -= skipped;
+
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int) Math.min(in.available(), remaining);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  private byte[] content(final long size) throws IOException {
+
+    byte[] b = new byte[(int) size];
+    readFully(b);
+    remaining = 0;
+
+    return b;
+  }
+
+  private boolean readBlock(final byte[] block) throws IOException {
+
+    int n = 0;
+
+    while (n < block.length) {
+
+      int r = in.read(block, n, block.length - n);
+      if (r < 0) {
+        if (0 == n) {
+          return false;
+        }
+        throw new EOFException();
+      }
+
+      n += r;
+    }
+
+    return true;
+  }
+
+  private void readFully(final byte[] b) throws IOException {
+
+    int n = 0;
+
+    while (n < b.length) {
+
+      int r = in.read(b, n, b.length - n);
+      if (r < 0) {
+        throw new EOFException();
+      }
+
+      n += r;
+    }
+  }
+
+  private void skipFully(final long n) throws IOException {
+
+    long skipped = 0;
+
+    while (skipped < n) {
+
+      long s = in.skip(n - skipped);
+
+      if (s <= 0) {
+        if (in.read() < 0) {
+          throw new EOFException();
+        }
+        s = 1;
+      }
+
+      skipped += s;
+    }
+  }
+
+  private static String name(final byte[] header) {
+
+    String name = string(header, 0, 100);
+
+    if (0 == header[262] && 'u' == header[257]) {
+      String prefix = string(header, 345, 155);
+      if (!prefix.isEmpty()) {
+        name = prefix + FileSystem.SEPERATOR + name;
+      }
+    }
+
+    return name;
+  }
+
+  private static String pax(final byte[] records) {
+
+    int i = 0;
+
+    while (i < records.length) {
+
+      int space = i;
+      while (space < records.length && ' ' != records[space]) {
+        space++;
+      }
+
+      if (space == records.length) {
+        break;
+      }
+
+      int length = Integer.parseInt(new String(records, i, space - i, UTF_8));
+      String record = new String(records, space + 1, i + length - space - 2, UTF_8);
+
+      if (record.startsWith(PAX_PATH)) {
+        return record.substring(PAX_PATH.length());
+      }
+
+      i += length;
+    }
+
+    return null;
+  }
+
+  private static boolean empty(final byte[] block) {
+
+    for (byte b : block) {
+      if (0 != b) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static long number(final byte[] header, final int offset, final int length) {
+
+    long n = 0;
+
+    if (0 != (header[offset] & 0x80)) {
+
+      for (int i = offset + 1; i < offset + length; i++) {
+        n = (n << 8) | (header[i] & 0xFF);
+      }
+
+      return n;
+    }
+
+    for (int i = offset; i < offset + length; i++) {
+
+      byte b = header[i];
+      if (b >= '0' && b <= '7') {
+        n = (n << 3) + (b - '0');
+      } else if (0 == b || ' ' == b) {
+        if (n > 0) {
+          break;
+        }
+      }
+    }
+
+    return n;
+  }
+
+  private static String string(final byte[] b, final int offset, final int length) {
+
+    int end = offset;
+    while (end < offset + length && 0 != b[end]) {
+      end++;
+    }
+
+    return new String(b, offset, end - offset, UTF_8);
+  }
+}
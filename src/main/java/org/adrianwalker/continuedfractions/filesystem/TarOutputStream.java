@@ -0,0 +1,144 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import static org.adrianwalker.continuedfractions.filesystem.TarInputStream.BLOCK_SIZE;
+import static org.adrianwalker.continuedfractions.filesystem.TarInputStream.UTF_8;
+
+/**
+ * Writes a GNU tar stream. Each entry's size must be known when it is put,
+ * names longer than a header allows are written as GNU long name entries.
+ */
+public final class TarOutputStream extends FilterOutputStream {
+
+  private static final int NAME_LENGTH = 100;
+  private static final String LONG_NAME = "././@LongLink";
+  private static final byte[] MAGIC = "ustar  \0".getBytes(UTF_8);
+
+  private long remaining;
+  private long padding;
+  private boolean finished;
+
+  public TarOutputStream(final OutputStream out) {
+    super(out);
+  }
+
+  public void putNextEntry(final TarEntry entry) throws IOException {
+
+    closeEntry();
+
+    String name = entry.isDirectory() ? entry.getName() + FileSystem.SEPERATOR : entry.getName();
+    byte[] bytes = name.getBytes(UTF_8);
+
+    if (bytes.length > NAME_LENGTH) {
+      header(LONG_NAME.getBytes(UTF_8), bytes.length + 1, 'L', 0644);
+      out.write(bytes);
+      out.write(new byte[BLOCK_SIZE - bytes.length % BLOCK_SIZE]);
+    }
+
+    header(bytes, entry.getSize(), entry.isDirectory() ? '5' : '0', entry.isDirectory() ? 0755 : 0644);
+
+    remaining = entry.getSize();
+    padding = (BLOCK_SIZE - remaining % BLOCK_SIZE) % BLOCK_SIZE;
+  }
+
+  public void closeEntry() throws IOException {
+
+    if (remaining > 0) {
+      throw new IOException("entry is " + remaining + " bytes short");
+    }
+
+    out.write(new byte[(int) padding]);
+    padding = 0;
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+
+    if (len > remaining) {
+      throw new IOException("entry size exceeded");
+    }
+
+    out.write(b, off, len);
+    remaining -= len;
+  }
+
+  public void finish() throws IOException {
+
+    if (!finished) {
+      closeEntry();
+      out.write(new byte[2 * BLOCK_SIZE]);
+      out.flush();
+      finished = true;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+
+    finish();
+    out.close();
+  }
+
+  private void header(final byte[] name, final long size, final char type, final int mode) throws IOException {
+
+    byte[] header = new byte[BLOCK_SIZE];
+
+    System.arraycopy(name, 0, header, 0, Math.min(name.length, NAME_LENGTH));
+    octal(header, 100, 8, mode);
+    octal(header, 108, 8, 0);
+    octal(header, 116, 8, 0);
+    size(header, size);
+    octal(header, 136, 12, System.currentTimeMillis() / 1000);
+    header[156] = (byte) type;
+    System.arraycopy(MAGIC, 0, header, 257, MAGIC.length);
+
+    for (int i = 148; i < 156; i++) {
+      header[i] = ' ';
+    }
+
+    long checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xFF;
+    }
+
+    octal(header, 148, 7, checksum);
+
+    out.write(header);
+  }
+
+  private static void size(final byte[] header, final long size) {
+
+    if (size < 077777777777L) {
+      octal(header, 124, 12, size);
+      return;
+    }
+
+    long n = size;
+    for (int i = 124 + 11; i > 124; i--) {
+      header[i] = (byte) n;
+      n >>>= 8;
+    }
+
+    header[124] = (byte) 0x80;
+  }
+
+  private static void octal(final byte[] header, final int offset, final int length, final long value) {
+
+    long n = value;
+
+    for (int i = offset + length - 2; i >= offset; i--) {
+      header[i] = (byte) ('0' + (n & 7));
+      n >>>= 3;
+    }
+
+    header[offset + length - 1] = 0;
+  }
+}
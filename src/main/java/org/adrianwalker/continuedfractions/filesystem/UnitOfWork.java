@@ -0,0 +1,9 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+/**
+ * File system operations run in one transaction by FileSystem.execute.
+ */
+public interface UnitOfWork<T> {
+
+  T execute() throws FileSystemException;
+}
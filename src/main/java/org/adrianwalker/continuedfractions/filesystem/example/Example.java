@@ -5,6 +5,7 @@ import java.sql.DriverManager;
 import org.adrianwalker.continuedfractions.filesystem.File;
 import org.adrianwalker.continuedfractions.filesystem.FileSystem;
 import org.adrianwalker.continuedfractions.filesystem.FilesDAO;
+import org.adrianwalker.continuedfractions.filesystem.PathCache;
 import static org.adrianwalker.continuedfractions.filesystem.Printer.print;
 
 public class Example {
@@ -20,7 +21,7 @@ public class Example {
     Connection connection = DriverManager.getConnection(URL, USERNAME, PASSWORD);
     connection.setAutoCommit(false);
 
-    FilesDAO dao = new FilesDAO(connection);
+    FilesDAO dao = new FilesDAO(connection, new PathCache(1000));
     dao.clear();
 
     FileSystem fs = new FileSystem(dao, 1);
@@ -41,7 +42,7 @@ public class Example {
     fs.create("/home/adrian/documents/presentations");
     fs.create("/home/adrian/documents/spreadsheets");
 
-    connection.commit();
+    dao.commit();
 
     print(fs.tree("/"));
 
@@ -52,7 +53,7 @@ public class Example {
     fs.write("/home/adrian/documents/text/test3.txt", "File System");
     fs.write("/home/adrian/documents/text/test4.txt", "World!");
 
-    connection.commit();
+    dao.commit();
 
     print(fs.tree("/"));
 
@@ -60,7 +61,7 @@ public class Example {
 
     fs.move("/home/adrian/documents", "/home/other");
 
-    connection.commit();
+    dao.commit();
 
     print(fs.tree("/"));
 
@@ -1,16 +1,237 @@
 CREATE TABLE files
 (
-  id numeric NOT NULL,
-  nv integer NOT NULL,
-  dv integer NOT NULL,
-  sid numeric NOT NULL,
-  snv integer NOT NULL,
-  sdv integer NOT NULL,
+  id bytea NOT NULL,
+  nv numeric NOT NULL,
+  dv numeric NOT NULL,
+  sid bytea NOT NULL,
+  snv numeric NOT NULL,
+  sdv numeric NOT NULL,
   level integer NOT NULL,
   name character varying NOT NULL,
   content oid NOT NULL,
+  data bytea,
   CONSTRAINT files_pkey PRIMARY KEY (id)
 );
 
 CREATE INDEX files_name_idx ON files (name);
-CREATE INDEX files_level_idx ON files (level);
\ No newline at end of file
+CREATE INDEX files_level_idx ON files (level);
+
+CREATE TABLE ordinals
+(
+  id bytea NOT NULL,
+  last integer NOT NULL,
+  CONSTRAINT ordinals_pkey PRIMARY KEY (id)
+);
+
+CREATE TABLE blobs
+(
+  content oid NOT NULL,
+  refs integer NOT NULL,
+  CONSTRAINT blobs_pkey PRIMARY KEY (content)
+);
+
+CREATE TABLE chunks
+(
+  hash bytea NOT NULL,
+  data bytea NOT NULL,
+  refs integer NOT NULL,
+  CONSTRAINT chunks_pkey PRIMARY KEY (hash)
+);
+
+CREATE TABLE manifests
+(
+  content oid NOT NULL,
+  seq integer NOT NULL,
+  hash bytea NOT NULL,
+  CONSTRAINT manifests_pkey PRIMARY KEY (content, seq)
+);
+
+CREATE TABLE trash
+(
+  id bytea NOT NULL,
+  sid bytea NOT NULL,
+  deleted timestamp NOT NULL DEFAULT now(),
+  CONSTRAINT trash_pkey PRIMARY KEY (id)
+);
+
+CREATE OR REPLACE FUNCTION files_copy_content(source oid) RETURNS oid AS $$
+DECLARE
+  target oid := lo_create(0);
+  fin integer := lo_open(source, 262144);
+  fout integer := lo_open(target, 131072);
+  chunk bytea;
+BEGIN
+  LOOP
+    chunk := loread(fin, 1048576);
+    EXIT WHEN length(chunk) = 0;
+    PERFORM lowrite(fout, chunk);
+  END LOOP;
+
+  PERFORM lo_close(fin);
+  PERFORM lo_close(fout);
+
+  RETURN target;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_create_content() RETURNS oid AS $$
+DECLARE
+  target oid := lo_create(0);
+BEGIN
+  INSERT INTO blobs (content, refs) VALUES (target, 1);
+
+  RETURN target;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_release_chunks(source oid) RETURNS integer AS $$
+DECLARE
+  h record;
+  n integer := 0;
+BEGIN
+  FOR h IN
+    WITH m AS (DELETE FROM manifests WHERE content = source RETURNING hash)
+    SELECT hash, count(*) AS refs FROM m GROUP BY hash
+  LOOP
+    UPDATE chunks SET refs = refs - h.refs WHERE hash = h.hash;
+    DELETE FROM chunks WHERE hash = h.hash AND refs <= 0;
+
+    IF FOUND THEN
+      n := n + 1;
+    END IF;
+  END LOOP;
+
+  RETURN n;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_release_content(source oid, n integer) RETURNS integer AS $$
+BEGIN
+  UPDATE blobs SET refs = refs - n WHERE content = source;
+  DELETE FROM blobs WHERE content = source AND refs <= 0;
+
+  IF FOUND THEN
+    PERFORM files_release_chunks(source);
+    PERFORM lo_unlink(source);
+    RETURN 1;
+  END IF;
+
+  RETURN 0;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_fork_content(file bytea) RETURNS oid AS $$
+DECLARE
+  source oid;
+  bytes bytea;
+  target oid;
+BEGIN
+  SELECT f.content, f.data INTO source, bytes FROM files f WHERE f.id = file FOR UPDATE;
+
+  IF source = 0 THEN
+    target := files_create_content();
+
+    IF bytes IS NOT NULL THEN
+      PERFORM lo_put(target, 0, bytes);
+    END IF;
+
+    UPDATE files SET content = target, data = NULL WHERE id = file;
+
+    RETURN target;
+  END IF;
+
+  UPDATE blobs SET refs = refs - 1 WHERE content = source AND refs > 1;
+
+  IF NOT FOUND THEN
+    RETURN source;
+  END IF;
+
+  target := files_copy_content(source);
+  INSERT INTO blobs (content, refs) VALUES (target, 1);
+
+  INSERT INTO manifests (content, seq, hash)
+  SELECT target, seq, hash FROM manifests WHERE content = source;
+
+  UPDATE chunks k SET refs = k.refs + c.refs
+  FROM (SELECT hash, count(*) AS refs FROM manifests WHERE content = source GROUP BY hash) c
+  WHERE k.hash = c.hash;
+  UPDATE files SET content = target WHERE id = file;
+
+  RETURN target;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_write_data(file bytea, bytes bytea) RETURNS integer AS $$
+DECLARE
+  source oid;
+BEGIN
+  SELECT f.content INTO source FROM files f WHERE f.id = file FOR UPDATE;
+  UPDATE files SET content = 0, data = bytes WHERE id = file;
+
+  RETURN files_release_content(source, 1);
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_trashed(file bytea) RETURNS boolean AS $$
+BEGIN
+  RETURN EXISTS (
+    SELECT 1 FROM trash t
+    WHERE t.id IN (SELECT substring(file FROM 1 FOR n) FROM generate_series(0, length(file)) AS n)
+    AND t.sid > file);
+END;
+$$ LANGUAGE plpgsql STABLE;
+
+CREATE OR REPLACE FUNCTION files_remove(low bytea, high bytea) RETURNS integer AS $$
+DECLARE
+  n integer;
+  released oid[];
+BEGIN
+  WITH r AS (DELETE FROM files WHERE id >= low AND id < high RETURNING content),
+  c AS (SELECT content, count(*) AS refs FROM r WHERE content <> 0 GROUP BY content),
+  u AS (UPDATE blobs b SET refs = b.refs - c.refs FROM c WHERE b.content = c.content RETURNING b.content, b.refs)
+  SELECT (SELECT count(*) FROM r), (SELECT array_agg(content) FROM u WHERE refs <= 0)
+  INTO n, released;
+
+  DELETE FROM trash WHERE id >= low AND id < high;
+  DELETE FROM blobs WHERE content = ANY (released);
+  PERFORM files_release_chunks(content) FROM unnest(released) AS content;
+  PERFORM lo_unlink(content) FROM unnest(released) AS content;
+
+  RETURN n;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_purge(low bytea, high bytea, n integer) RETURNS integer AS $$
+DECLARE
+  last bytea;
+BEGIN
+  SELECT f.id INTO last
+  FROM (SELECT id FROM files WHERE id > low AND id < high ORDER BY id LIMIT n) f
+  ORDER BY f.id DESC
+  LIMIT 1;
+
+  IF last IS NULL THEN
+    RETURN files_remove(low, high);
+  END IF;
+
+  RETURN files_remove(low || '\x00'::bytea, last || '\x00'::bytea);
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_reclaim_orphans(candidates oid[]) RETURNS integer AS $$
+DECLARE
+  released oid[];
+BEGIN
+  WITH o AS (
+    SELECT b.content FROM blobs b
+    WHERE b.content = ANY (candidates)
+    AND NOT EXISTS (SELECT 1 FROM files f WHERE f.content = b.content)),
+  d AS (DELETE FROM blobs b USING o WHERE b.content = o.content RETURNING b.content)
+  SELECT array_agg(content) INTO released FROM d;
+
+  PERFORM files_release_chunks(content) FROM unnest(released) AS content;
+  PERFORM lo_unlink(content) FROM unnest(released) AS content;
+
+  RETURN coalesce(array_length(released, 1), 0);
+END;
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,5 @@
+ALTER TABLE files
+  ALTER COLUMN nv TYPE numeric,
+  ALTER COLUMN dv TYPE numeric,
+  ALTER COLUMN snv TYPE numeric,
+  ALTER COLUMN sdv TYPE numeric;
@@ -0,0 +1,36 @@
+CREATE FUNCTION files_binary(n numeric, d numeric) RETURNS bytea AS $$
+DECLARE
+  b bytea := '';
+  c numeric;
+  r numeric;
+  h text;
+BEGIN
+  WHILE n > 0 LOOP
+    c := div(n, d);
+    r := n - c * d;
+    n := r;
+    d := d - r;
+
+    h := to_hex(c::integer);
+    h := lpad(h, length(h) + length(h) % 2, '0');
+
+    IF c < 248 THEN
+      b := b || decode(h, 'hex');
+    ELSE
+      b := b || decode(to_hex(247 + length(h) / 2), 'hex') || decode(h, 'hex');
+    END IF;
+  END LOOP;
+
+  RETURN b;
+END;
+$$ LANGUAGE plpgsql IMMUTABLE;
+
+ALTER TABLE files DROP CONSTRAINT files_pkey;
+
+ALTER TABLE files
+  ALTER COLUMN id TYPE bytea USING files_binary(nv, dv),
+  ALTER COLUMN sid TYPE bytea USING files_binary(snv, sdv);
+
+ALTER TABLE files ADD CONSTRAINT files_pkey PRIMARY KEY (id);
+
+DROP FUNCTION files_binary(numeric, numeric);
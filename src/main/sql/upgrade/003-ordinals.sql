@@ -0,0 +1,6 @@
+CREATE TABLE ordinals
+(
+  id bytea NOT NULL,
+  last integer NOT NULL,
+  CONSTRAINT ordinals_pkey PRIMARY KEY (id)
+);
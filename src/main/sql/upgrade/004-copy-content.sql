@@ -0,0 +1,19 @@
+CREATE OR REPLACE FUNCTION files_copy_content(source oid) RETURNS oid AS $$
+DECLARE
+  target oid := lo_create(0);
+  fin integer := lo_open(source, 262144);
+  fout integer := lo_open(target, 131072);
+  chunk bytea;
+BEGIN
+  LOOP
+    chunk := loread(fin, 1048576);
+    EXIT WHEN length(chunk) = 0;
+    PERFORM lowrite(fout, chunk);
+  END LOOP;
+
+  PERFORM lo_close(fin);
+  PERFORM lo_close(fout);
+
+  RETURN target;
+END;
+$$ LANGUAGE plpgsql;
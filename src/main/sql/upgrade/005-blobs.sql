@@ -0,0 +1,53 @@
+CREATE TABLE blobs
+(
+  content oid NOT NULL,
+  refs integer NOT NULL,
+  CONSTRAINT blobs_pkey PRIMARY KEY (content)
+);
+
+INSERT INTO blobs (content, refs)
+SELECT content, count(*) FROM files GROUP BY content;
+
+CREATE OR REPLACE FUNCTION files_create_content() RETURNS oid AS $$
+DECLARE
+  target oid := lo_create(0);
+BEGIN
+  INSERT INTO blobs (content, refs) VALUES (target, 1);
+
+  RETURN target;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_release_content(source oid, n integer) RETURNS integer AS $$
+BEGIN
+  UPDATE blobs SET refs = refs - n WHERE content = source;
+  DELETE FROM blobs WHERE content = source AND refs <= 0;
+
+  IF FOUND THEN
+    PERFORM lo_unlink(source);
+    RETURN 1;
+  END IF;
+
+  RETURN 0;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_fork_content(file bytea) RETURNS oid AS $$
+DECLARE
+  source oid;
+  target oid;
+BEGIN
+  SELECT f.content INTO source FROM files f WHERE f.id = file FOR UPDATE;
+  UPDATE blobs SET refs = refs - 1 WHERE content = source AND refs > 1;
+
+  IF NOT FOUND THEN
+    RETURN source;
+  END IF;
+
+  target := files_copy_content(source);
+  INSERT INTO blobs (content, refs) VALUES (target, 1);
+  UPDATE files SET content = target WHERE id = file;
+
+  RETURN target;
+END;
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,78 @@
+CREATE TABLE chunks
+(
+  hash bytea NOT NULL,
+  data bytea NOT NULL,
+  refs integer NOT NULL,
+  CONSTRAINT chunks_pkey PRIMARY KEY (hash)
+);
+
+CREATE TABLE manifests
+(
+  content oid NOT NULL,
+  seq integer NOT NULL,
+  hash bytea NOT NULL,
+  CONSTRAINT manifests_pkey PRIMARY KEY (content, seq)
+);
+
+CREATE OR REPLACE FUNCTION files_release_chunks(source oid) RETURNS integer AS $$
+DECLARE
+  h record;
+  n integer := 0;
+BEGIN
+  FOR h IN
+    WITH m AS (DELETE FROM manifests WHERE content = source RETURNING hash)
+    SELECT hash, count(*) AS refs FROM m GROUP BY hash
+  LOOP
+    UPDATE chunks SET refs = refs - h.refs WHERE hash = h.hash;
+    DELETE FROM chunks WHERE hash = h.hash AND refs <= 0;
+
+    IF FOUND THEN
+      n := n + 1;
+    END IF;
+  END LOOP;
+
+  RETURN n;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_release_content(source oid, n integer) RETURNS integer AS $$
+BEGIN
+  UPDATE blobs SET refs = refs - n WHERE content = source;
+  DELETE FROM blobs WHERE content = source AND refs <= 0;
+
+  IF FOUND THEN
+    PERFORM files_release_chunks(source);
+    PERFORM lo_unlink(source);
+    RETURN 1;
+  END IF;
+
+  RETURN 0;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_fork_content(file bytea) RETURNS oid AS $$
+DECLARE
+  source oid;
+  target oid;
+BEGIN
+  SELECT f.content INTO source FROM files f WHERE f.id = file FOR UPDATE;
+  UPDATE blobs SET refs = refs - 1 WHERE content = source AND refs > 1;
+
+  IF NOT FOUND THEN
+    RETURN source;
+  END IF;
+
+  target := files_copy_content(source);
+  INSERT INTO blobs (content, refs) VALUES (target, 1);
+
+  INSERT INTO manifests (content, seq, hash)
+  SELECT target, seq, hash FROM manifests WHERE content = source;
+
+  UPDATE chunks k SET refs = k.refs + c.refs
+  FROM (SELECT hash, count(*) AS refs FROM manifests WHERE content = source GROUP BY hash) c
+  WHERE k.hash = c.hash;
+  UPDATE files SET content = target WHERE id = file;
+
+  RETURN target;
+END;
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,53 @@
+ALTER TABLE files ADD COLUMN data bytea;
+
+CREATE OR REPLACE FUNCTION files_fork_content(file bytea) RETURNS oid AS $$
+DECLARE
+  source oid;
+  bytes bytea;
+  target oid;
+BEGIN
+  SELECT f.content, f.data INTO source, bytes FROM files f WHERE f.id = file FOR UPDATE;
+
+  IF source = 0 THEN
+    target := files_create_content();
+
+    IF bytes IS NOT NULL THEN
+      PERFORM lo_put(target, 0, bytes);
+    END IF;
+
+    UPDATE files SET content = target, data = NULL WHERE id = file;
+
+    RETURN target;
+  END IF;
+
+  UPDATE blobs SET refs = refs - 1 WHERE content = source AND refs > 1;
+
+  IF NOT FOUND THEN
+    RETURN source;
+  END IF;
+
+  target := files_copy_content(source);
+  INSERT INTO blobs (content, refs) VALUES (target, 1);
+
+  INSERT INTO manifests (content, seq, hash)
+  SELECT target, seq, hash FROM manifests WHERE content = source;
+
+  UPDATE chunks k SET refs = k.refs + c.refs
+  FROM (SELECT hash, count(*) AS refs FROM manifests WHERE content = source GROUP BY hash) c
+  WHERE k.hash = c.hash;
+  UPDATE files SET content = target WHERE id = file;
+
+  RETURN target;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_write_data(file bytea, bytes bytea) RETURNS integer AS $$
+DECLARE
+  source oid;
+BEGIN
+  SELECT f.content INTO source FROM files f WHERE f.id = file FOR UPDATE;
+  UPDATE files SET content = 0, data = bytes WHERE id = file;
+
+  RETURN files_release_content(source, 1);
+END;
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,18 @@
+CREATE OR REPLACE FUNCTION files_remove(low bytea, high bytea) RETURNS integer AS $$
+DECLARE
+  n integer;
+  released oid[];
+BEGIN
+  WITH r AS (DELETE FROM files WHERE id >= low AND id < high RETURNING content),
+  c AS (SELECT content, count(*) AS refs FROM r WHERE content <> 0 GROUP BY content),
+  u AS (UPDATE blobs b SET refs = b.refs - c.refs FROM c WHERE b.content = c.content RETURNING b.content, b.refs)
+  SELECT (SELECT count(*) FROM r), (SELECT array_agg(content) FROM u WHERE refs <= 0)
+  INTO n, released;
+
+  DELETE FROM blobs WHERE content = ANY (released);
+  PERFORM files_release_chunks(content) FROM unnest(released) AS content;
+  PERFORM lo_unlink(content) FROM unnest(released) AS content;
+
+  RETURN n;
+END;
+$$ LANGUAGE plpgsql;
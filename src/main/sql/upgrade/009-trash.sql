@@ -0,0 +1,62 @@
+CREATE TABLE trash
+(
+  id bytea NOT NULL,
+  sid bytea NOT NULL,
+  deleted timestamp NOT NULL DEFAULT now(),
+  CONSTRAINT trash_pkey PRIMARY KEY (id)
+);
+
+CREATE OR REPLACE FUNCTION files_remove(low bytea, high bytea) RETURNS integer AS $$
+DECLARE
+  n integer;
+  released oid[];
+BEGIN
+  WITH r AS (DELETE FROM files WHERE id >= low AND id < high RETURNING content),
+  c AS (SELECT content, count(*) AS refs FROM r WHERE content <> 0 GROUP BY content),
+  u AS (UPDATE blobs b SET refs = b.refs - c.refs FROM c WHERE b.content = c.content RETURNING b.content, b.refs)
+  SELECT (SELECT count(*) FROM r), (SELECT array_agg(content) FROM u WHERE refs <= 0)
+  INTO n, released;
+
+  DELETE FROM trash WHERE id >= low AND id < high;
+  DELETE FROM blobs WHERE content = ANY (released);
+  PERFORM files_release_chunks(content) FROM unnest(released) AS content;
+  PERFORM lo_unlink(content) FROM unnest(released) AS content;
+
+  RETURN n;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_purge(low bytea, high bytea, n integer) RETURNS integer AS $$
+DECLARE
+  last bytea;
+BEGIN
+  SELECT f.id INTO last
+  FROM (SELECT id FROM files WHERE id > low AND id < high ORDER BY id LIMIT n) f
+  ORDER BY f.id DESC
+  LIMIT 1;
+
+  IF last IS NULL THEN
+    RETURN files_remove(low, high);
+  END IF;
+
+  RETURN files_remove(low || '\x00'::bytea, last || '\x00'::bytea);
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION files_reclaim_orphans(candidates oid[]) RETURNS integer AS $$
+DECLARE
+  released oid[];
+BEGIN
+  WITH o AS (
+    SELECT b.content FROM blobs b
+    WHERE b.content = ANY (candidates)
+    AND NOT EXISTS (SELECT 1 FROM files f WHERE f.content = b.content)),
+  d AS (DELETE FROM blobs b USING o WHERE b.content = o.content RETURNING b.content)
+  SELECT array_agg(content) INTO released FROM d;
+
+  PERFORM files_release_chunks(content) FROM unnest(released) AS content;
+  PERFORM lo_unlink(content) FROM unnest(released) AS content;
+
+  RETURN coalesce(array_length(released, 1), 0);
+END;
+$$ LANGUAGE plpgsql;
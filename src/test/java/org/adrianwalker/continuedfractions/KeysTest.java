@@ -0,0 +1,88 @@
+package org.adrianwalker.continuedfractions;
+
+import java.util.Arrays;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.adrianwalker.continuedfractions.Keys.key;
+import org.junit.Test;
+
+public final class KeysTest {
+
+  public KeysTest() {
+  }
+
+  private static int[] deep(final int depth, final int ordinal) {
+
+    int[] path = new int[depth];
+    Arrays.fill(path, ordinal);
+
+    return path;
+  }
+
+  private static void assertKey(final Key expected, final Key actual) {
+
+    assertEquals(expected.getBigNv(), actual.getBigNv());
+    assertEquals(expected.getBigDv(), actual.getBigDv());
+    assertEquals(expected.getBigSnv(), actual.getBigSnv());
+    assertEquals(expected.getBigSdv(), actual.getBigSdv());
+  }
+
+  @Test
+  public void parent() {
+
+    assertKey(key(new int[]{2, 4}, new Key()), Keys.parent(key(new int[]{2, 4, 1}, new Key()), new Key()));
+    assertKey(key(new int[]{2}, new Key()), Keys.parent(key(new int[]{2, 4}, new Key()), new Key()));
+    assertTrue(Keys.isRoot(Keys.parent(key(new int[]{2}, new Key()), new Key())));
+
+    int[] path = deep(100, 3);
+    assertKey(key(path, 0, 99, new Key()), Keys.parent(key(path, new Key()), new Key()));
+  }
+
+  @Test
+  public void path() {
+
+    assertTrue(Arrays.equals(new int[]{2, 4, 1}, Keys.path(key(new int[]{2, 4, 1}, new Key()))));
+    assertEquals(3, Keys.depth(key(new int[]{2, 4, 1}, new Key())));
+
+    int[] path = deep(100, 1000);
+    assertTrue(Arrays.equals(path, Keys.path(key(path, new Key()))));
+    assertEquals(100, Keys.depth(key(path, new Key())));
+  }
+
+  @Test
+  public void isDescendant() {
+
+    Key o2 = key(new int[]{2}, new Key());
+    Key o2o4 = key(new int[]{2, 4}, new Key());
+    Key o2o4o1 = key(new int[]{2, 4, 1}, new Key());
+    Key o2o5 = key(new int[]{2, 5}, new Key());
+    Key o3 = key(new int[]{3}, new Key());
+
+    assertTrue(Keys.isDescendant(o2o4, o2));
+    assertTrue(Keys.isDescendant(o2o4o1, o2));
+    assertTrue(Keys.isDescendant(o2o4o1, o2o4));
+    assertFalse(Keys.isDescendant(o2o4, o2o4));
+    assertFalse(Keys.isDescendant(o2, o2o4));
+    assertFalse(Keys.isDescendant(o2o5, o2o4));
+    assertFalse(Keys.isDescendant(o3, o2));
+    assertTrue(Keys.isDescendant(o3, Keys.root(new Key())));
+
+    int[] path = deep(100, 7);
+    assertTrue(Keys.isDescendant(key(path, new Key()), key(path, 0, 60, new Key())));
+    assertFalse(Keys.isDescendant(key(path, 0, 60, new Key()), key(path, new Key())));
+  }
+
+  @Test
+  public void commonAncestor() {
+
+    Key o2o4o1 = key(new int[]{2, 4, 1}, new Key());
+    Key o2o4o3 = key(new int[]{2, 4, 3}, new Key());
+    Key o2o5 = key(new int[]{2, 5}, new Key());
+    Key o3 = key(new int[]{3}, new Key());
+
+    assertKey(key(new int[]{2, 4}, new Key()), Keys.commonAncestor(o2o4o1, o2o4o3, new Key()));
+    assertKey(key(new int[]{2}, new Key()), Keys.commonAncestor(o2o4o1, o2o5, new Key()));
+    assertTrue(Keys.isRoot(Keys.commonAncestor(o2o4o1, o3, new Key())));
+  }
+}
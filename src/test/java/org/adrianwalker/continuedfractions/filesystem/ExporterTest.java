@@ -0,0 +1,153 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.postgresql.ds.PGSimpleDataSource;
+
+public final class ExporterTest {
+
+  private static final String DRIVER = "org.postgresql.Driver";
+  private static final String URL = "jdbc:postgresql://localhost:5432/postgres";
+  private static final String USERNAME = "postgres";
+  private static final String PASSWORD = "postgres";
+
+  private static Connection connection;
+  private static PGSimpleDataSource dataSource;
+
+  public ExporterTest() {
+  }
+
+  @BeforeClass
+  public static void openConnection() throws ClassNotFoundException, SQLException {
+
+    Class.forName(DRIVER);
+
+    connection = DriverManager.getConnection(URL, USERNAME, PASSWORD);
+    connection.setAutoCommit(false);
+
+    dataSource = new PGSimpleDataSource();
+    dataSource.setServerName("localhost");
+    dataSource.setPortNumber(5432);
+    dataSource.setDatabaseName("postgres");
+    dataSource.setUser(USERNAME);
+    dataSource.setPassword(PASSWORD);
+  }
+
+  @AfterClass
+  public static void closeConnection() throws SQLException {
+
+    if (null != connection) {
+      connection.close();
+    }
+  }
+
+  @Before
+  public void clear() throws SQLException {
+
+    FilesDAO dao = new FilesDAO(connection);
+    dao.clear();
+    connection.commit();
+  }
+
+  @Test
+  public void export() throws SQLException, IOException, FileSystemException {
+
+    try (FilesDAOPool pool = new FilesDAOPool(dataSource, 2)) {
+
+      FileSystem fs = new FileSystem(pool, 1);
+      fs.write("/dir1/file1", "text1");
+      fs.write("/dir1/dir2/file2", "text2");
+      fs.create("/dir1/dir2/dir3/" + new String(new char[200]).replace('\0', 'x'));
+      fs.write("/file3", new String(new char[200 * 1024]).replace('\0', 'y'));
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(7, new Exporter(pool, 2, 4).export(out, 1));
+
+      int[] path = new Importer(pool, 2, 100).importTar(new ByteArrayInputStream(out.toByteArray()), "copy", 1);
+      assertTrue(Arrays.equals(new int[]{1, 3}, path));
+
+      assertEquals(8, fs.tree("/copy").length);
+      assertEquals("text1", fs.read("/copy/dir1/file1"));
+      assertEquals("text2", fs.read("/copy/dir1/dir2/file2"));
+      assertEquals(1, fs.list("/copy/dir1/dir2/dir3").length);
+      assertEquals(200 * 1024, fs.read("/copy/file3").length());
+    }
+  }
+
+  @Test
+  public void exportContentAndChildren() throws SQLException, IOException, FileSystemException {
+
+    try (FilesDAOPool pool = new FilesDAOPool(dataSource, 2)) {
+
+      FileSystem fs = new FileSystem(pool, 1);
+      fs.write("/dir1", "text1");
+      fs.write("/dir1/file2", "text2");
+      fs.write("/dir1/dir3", new String(new char[200 * 1024]).replace('\0', 'y'));
+      fs.write("/dir1/dir3/file4", "text4");
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(4, new Exporter(pool, 2, 4).export(out, 1));
+
+      new Importer(pool, 2, 100).importTar(new ByteArrayInputStream(out.toByteArray()), "copy", 1);
+
+      assertEquals(5, fs.tree("/copy").length);
+      assertEquals("text1", fs.read("/copy/dir1"));
+      assertEquals("text2", fs.read("/copy/dir1/file2"));
+      assertEquals(200 * 1024, fs.read("/copy/dir1/dir3").length());
+      assertEquals("text4", fs.read("/copy/dir1/dir3/file4"));
+    }
+  }
+
+  @Test
+  public void exportDuringMove() throws Exception {
+
+    try (FilesDAOPool pool = new FilesDAOPool(dataSource, 3)) {
+
+      pool.setMirror(new MetadataMirror());
+
+      final FileSystem fs = new FileSystem(pool, 1);
+      fs.write("/a/file1", "text1");
+      fs.write("/b/file2", "text2");
+      fs.write("/c/file3", "text3");
+      pool.loadMirror();
+
+      OutputStream out = new FilterOutputStream(new ByteArrayOutputStream()) {
+
+        private boolean moved;
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+
+          if (!moved) {
+
+            moved = true;
+
+            try {
+              fs.move("/a", "/z");
+            } catch (final FileSystemException fse) {
+              throw new IOException(fse);
+            }
+          }
+
+          out.write(b, off, len);
+        }
+      };
+
+      assertEquals(6, new Exporter(pool, 1, 1).export(out, 1));
+      assertEquals(3, fs.tree("/z").length);
+    }
+  }
+}
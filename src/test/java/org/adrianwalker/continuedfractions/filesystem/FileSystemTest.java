@@ -1,15 +1,37 @@
 package org.adrianwalker.continuedfractions.filesystem;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import static org.adrianwalker.continuedfractions.Fraction.binary;
+import org.postgresql.ds.PGSimpleDataSource;
 
 public final class FileSystemTest {
 
@@ -19,6 +41,7 @@ public final class FileSystemTest {
   private static final String PASSWORD = "postgres";
 
   private static Connection connection;
+  private static PGSimpleDataSource dataSource;
 
   public FileSystemTest() {
   }
@@ -30,6 +53,13 @@ public final class FileSystemTest {
 
     connection = DriverManager.getConnection(URL, USERNAME, PASSWORD);
     connection.setAutoCommit(false);
+
+    dataSource = new PGSimpleDataSource();
+    dataSource.setServerName("localhost");
+    dataSource.setPortNumber(5432);
+    dataSource.setDatabaseName("postgres");
+    dataSource.setUser(USERNAME);
+    dataSource.setPassword(PASSWORD);
   }
 
   @AfterClass
@@ -196,4 +226,522 @@ public final class FileSystemTest {
     files = fs.list("/dir5");
     assertEquals(1, files.length);
   }
+
+  @Test
+  public void concurrent() throws Exception {
+
+    clear();
+    commit();
+
+    final int threads = 8;
+
+    try (FilesDAOPool pool = new FilesDAOPool(dataSource, 4, new PathCache(1000))) {
+
+      final FileSystem fs = new FileSystem(pool, 1);
+      for (int t = 0; t < threads; t++) {
+        fs.create("/dir" + t);
+      }
+
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      List<Future<Void>> futures = new ArrayList<>();
+
+      for (int t = 0; t < threads; t++) {
+
+        final String dir = "/dir" + t;
+
+        futures.add(executor.submit(new Callable<Void>() {
+
+          @Override
+          public Void call() throws Exception {
+
+            for (int i = 0; i < 10; i++) {
+              fs.write(dir + "/file" + i, dir + i);
+            }
+
+            return null;
+          }
+        }));
+      }
+
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+
+      executor.shutdown();
+
+      for (int t = 0; t < threads; t++) {
+        assertEquals(10, fs.list("/dir" + t).length);
+        assertEquals("/dir" + t + 9, fs.read("/dir" + t + "/file9"));
+      }
+    }
+  }
+
+  @Test
+  public void allocate() throws Exception {
+
+    clear();
+    commit();
+
+    final int threads = 8;
+    final AtomicInteger connections = new AtomicInteger();
+
+    DataSource counting = (DataSource) Proxy.newProxyInstance(
+            DataSource.class.getClassLoader(), new Class<?>[]{DataSource.class}, new InvocationHandler() {
+
+      @Override
+      public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+
+        if ("getConnection".equals(method.getName())) {
+          connections.incrementAndGet();
+        }
+
+        return method.invoke(dataSource, args);
+      }
+    });
+
+    try (OrdinalAllocator allocator = new OrdinalAllocator(counting, 4);
+            FilesDAOPool pool = new FilesDAOPool(dataSource, 4, null, allocator)) {
+
+      final FileSystem fs = new FileSystem(pool, 1);
+      fs.create("/dir1/file0");
+
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      List<Future<Void>> futures = new ArrayList<>();
+
+      for (int t = 0; t < threads; t++) {
+
+        final String name = "/dir1/file" + t + "-";
+
+        futures.add(executor.submit(new Callable<Void>() {
+
+          @Override
+          public Void call() throws Exception {
+
+            for (int i = 0; i < 25; i++) {
+              fs.create(name + i);
+            }
+
+            return null;
+          }
+        }));
+      }
+
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+
+      executor.shutdown();
+
+      assertEquals(threads * 25 + 1, fs.list("/dir1").length);
+      assertEquals(1, connections.get());
+    }
+  }
+
+  @Test
+  public void execute() throws Exception {
+
+    clear();
+    commit();
+
+    try (FilesDAOPool pool = new FilesDAOPool(dataSource, 2)) {
+
+      final FileSystem fs = new FileSystem(pool, 1);
+
+      fs.execute(new UnitOfWork<Void>() {
+
+        @Override
+        public Void execute() throws FileSystemException {
+
+          fs.create("/dir1");
+          fs.write("/dir1/file1", "committed");
+
+          return null;
+        }
+      });
+
+      try {
+        fs.execute(new UnitOfWork<Void>() {
+
+          @Override
+          public Void execute() throws FileSystemException {
+
+            fs.create("/dir2");
+            throw new FileSystemException("rollback");
+          }
+        });
+      } catch (final FileSystemException fse) {
+        assertEquals("rollback", fse.getMessage());
+      }
+
+      assertEquals("committed", fs.read("/dir1/file1"));
+      assertEquals(1, fs.list("/").length);
+      assertTrue(Stream.toString(fs.getInputStream("/dir1/file1")).startsWith("commit"));
+    }
+  }
+
+  @Test
+  public void channel() throws Exception {
+
+    clear();
+    commit();
+
+    try (FilesDAOPool pool = new FilesDAOPool(dataSource, 2)) {
+
+      FileSystem fs = new FileSystem(pool, 1);
+
+      try (SeekableByteChannel channel = fs.open("/dir1/file1",
+              StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+
+        channel.write(ByteBuffer.wrap("Hello World!".getBytes()));
+        channel.position(6).write(ByteBuffer.wrap("There".getBytes()));
+        assertEquals(12, channel.size());
+      }
+
+      assertEquals("Hello There!", fs.read("/dir1/file1"));
+
+      try (SeekableByteChannel channel = fs.open("/dir1/file1")) {
+
+        ByteBuffer b = ByteBuffer.allocate(5);
+        channel.position(6).read(b);
+        assertEquals("There", new String(b.array()));
+        b.clear();
+        assertEquals(-1, channel.position(12).read(b));
+      }
+
+      try (SeekableByteChannel channel = fs.open("/dir1/file1", StandardOpenOption.APPEND)) {
+
+        channel.write(ByteBuffer.wrap("!!".getBytes()));
+        channel.truncate(13);
+      }
+
+      assertEquals("Hello There!!", fs.read("/dir1/file1"));
+
+      fs.write("/dir1/file2", "inline");
+
+      try (SeekableByteChannel channel = fs.open("/dir1/file2")) {
+
+        ByteBuffer b = ByteBuffer.allocate(4);
+        channel.position(2).read(b);
+        assertEquals("line", new String(b.array()));
+      }
+
+      try {
+        fs.open("/dir1/file3");
+        fail();
+      } catch (final FileSystemException fse) {
+        assertTrue(fse.getMessage().startsWith("no such file"));
+      }
+    }
+  }
+
+  @Test
+  public void channelChunked() throws Exception {
+
+    clear();
+
+    FilesDAO dao = new FilesDAO(connection);
+    dao.setChunkSize(1024);
+    FileSystem fs = new FileSystem(dao, 1);
+
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      text.append((char) ('a' + i % 26));
+    }
+
+    fs.write("/dir1/file1", text.toString());
+
+    try (SeekableByteChannel channel = fs.open("/dir1/file1")) {
+
+      assertEquals(5000, channel.size());
+
+      ByteBuffer b = ByteBuffer.allocate(10);
+      while (b.hasRemaining()) {
+        channel.position(1020 + b.position()).read(b);
+      }
+      assertEquals(text.substring(1020, 1030), new String(b.array()));
+
+      b.clear();
+      assertEquals(10, channel.position(4990).read(b));
+      assertEquals(text.substring(4990), new String(b.array()));
+      b.clear();
+      assertEquals(-1, channel.read(b));
+
+      b.clear();
+      assertEquals(10, channel.position(0).read(b));
+      assertEquals(text.substring(0, 10), new String(b.array()));
+    }
+  }
+
+  @Test
+  public void trash() throws Exception {
+
+    clear();
+    commit();
+
+    try (FilesDAOPool pool = new FilesDAOPool(dataSource, 2);
+            Purger purger = new Purger(pool, 2, 0)) {
+
+      FileSystem fs = new FileSystem(pool, 1);
+      fs.write("/dir1/dir2/file1", "Hello World, Hello World!");
+      fs.write("/dir1/dir2/file2", "Hello");
+      fs.create("/dir1/dir2/dir3/file3");
+      fs.create("/dir1/file4");
+
+      fs.delete("/dir1/dir2", true);
+
+      assertEquals(1, fs.list("/dir1").length);
+      assertEquals(2, fs.tree("/dir1").length);
+      assertEquals(0, fs.tree("/dir1/dir2").length);
+
+      fs.write("/dir1/dir2/file1", "Hello again");
+      assertEquals("Hello again", fs.read("/dir1/dir2/file1"));
+      assertEquals(2, fs.list("/dir1").length);
+
+      fs.move("/dir1", "/dir5");
+      assertEquals(5, fs.tree("/dir5").length);
+
+      assertEquals(5, purger.purge());
+      assertEquals(0, purger.purge());
+      assertEquals(6, fs.tree("/").length);
+      assertEquals("Hello again", fs.read("/dir5/dir1/dir2/file1"));
+
+      FilesDAO dao = pool.borrow();
+      dao.createContent();
+      pool.release(dao, true);
+
+      assertEquals(0, purger.reclaimOrphans());
+      assertEquals(1, purger.reclaimOrphans());
+      assertEquals(0, purger.reclaimOrphans());
+    }
+  }
+
+  @Test
+  public void purgeOrdinals() throws Exception {
+
+    clear();
+    commit();
+
+    try (OrdinalAllocator allocator = new OrdinalAllocator(dataSource, 16);
+            FilesDAOPool pool = new FilesDAOPool(dataSource, 2, null, allocator);
+            Purger purger = new Purger(pool, 2, 0)) {
+
+      FileSystem fs = new FileSystem(pool, 1);
+      int[] dir1 = fs.create("/dir1");
+      int[] dir2 = fs.create("/dir1/dir2");
+      fs.create("/dir1/dir2/file1");
+      fs.create("/dir1/dir2/dir3");
+      fs.create("/dir1/dir2/dir3/file2");
+
+      assertEquals(3, ordinals(dir1));
+      assertEquals(2, ordinals(dir2));
+
+      fs.delete("/dir1/dir2", true);
+      assertEquals(2, ordinals(dir2));
+
+      assertEquals(4, purger.purge());
+      assertEquals(0, ordinals(dir2));
+      assertEquals(1, ordinals(dir1));
+    }
+  }
+
+  private static long ordinals(final int... path) throws SQLException {
+
+    try (PreparedStatement count = connection.prepareStatement(
+            "select count(*) from ordinals where id >= ? and id < ?")) {
+
+      count.setBytes(1, binary(path));
+      count.setBytes(2, binary(Path.sibling(path)));
+
+      try (ResultSet rs = count.executeQuery()) {
+        rs.next();
+        return rs.getLong(1);
+      }
+    }
+  }
+
+  @Test
+  public void compact() throws Exception {
+
+    clear();
+    commit();
+
+    try (FilesDAOPool pool = new FilesDAOPool(dataSource, 2)) {
+
+      FileSystem fs = new FileSystem(pool, 1);
+      int[] dir1 = fs.create("/dir1");
+
+      for (int i = 1; i <= 6; i++) {
+        fs.write("/dir1/file" + i, "Hello " + i);
+      }
+
+      fs.create("/dir1/dir2/file7");
+      fs.delete("/dir1/file1");
+      fs.delete("/dir1/file3");
+      fs.delete("/dir1/file4", true);
+      fs.move("/dir1/file5", "/dir3");
+
+      Compactor.Compaction compaction = new Compactor(pool, 2, 0).compact(dir1);
+
+      assertEquals(3, compaction.getRenumbered());
+      assertEquals(7, compaction.getLastBefore());
+      assertEquals(4, compaction.getLastAfter());
+      assertEquals(3, compaction.getOrdinalsSaved());
+      assertTrue(compaction.getBitsSaved() > 0);
+
+      assertEquals(3, fs.list("/dir1").length);
+      assertEquals(5, fs.tree("/dir1").length);
+      assertEquals("Hello 2", fs.read("/dir1/file2"));
+      assertEquals("Hello 6", fs.read("/dir1/file6"));
+      assertEquals("Hello 5", fs.read("/dir3/file5"));
+
+      int[] file8 = fs.create("/dir1/file8");
+      assertEquals(5, file8[file8.length - 1]);
+
+      assertEquals(0, new Compactor(pool, 2, 0).compact(dir1).getRenumbered());
+    }
+  }
+
+  @Test
+  public void compactAllocated() throws Exception {
+
+    clear();
+    commit();
+
+    try (OrdinalAllocator allocator = new OrdinalAllocator(dataSource, 16);
+            OrdinalAllocator other = new OrdinalAllocator(dataSource, 16);
+            FilesDAOPool pool = new FilesDAOPool(dataSource, 2, null, allocator)) {
+
+      FileSystem fs = new FileSystem(pool, 1);
+      int[] dir1 = fs.create("/dir1");
+      fs.create("/dir1/file1");
+      fs.create("/dir1/file1/a");
+      fs.create("/dir1/file2");
+      fs.create("/dir1/file2/a");
+      fs.create("/dir1/file2/b");
+      fs.create("/dir1/file3");
+
+      fs.delete("/dir1/file1");
+      assertEquals(2, new Compactor(pool, 16, 0).compact(dir1).getRenumbered());
+
+      int[] c = fs.create("/dir1/file2/c");
+      assertEquals(1, c[dir1.length]);
+      assertEquals(3, c[c.length - 1]);
+      assertEquals(3, fs.list("/dir1/file2").length);
+
+      assertEquals(17, other.next(dir1));
+    }
+  }
+
+  @Test
+  public void mirrorOrder() throws Exception {
+
+    clear();
+    commit();
+
+    try (FilesDAOPool pool = new FilesDAOPool(dataSource, 2);
+            FilesDAOPool mirrored = new FilesDAOPool(dataSource, 2)) {
+
+      mirrored.setMirror(new MetadataMirror());
+
+      FileSystem fs = new FileSystem(pool, 1);
+      FileSystem mfs = new FileSystem(mirrored, 1);
+
+      String[] names = {"B", "_c", "a", "a b", "ab", "b", "\uFF01", "\uD83D\uDE00"};
+      for (int i = names.length - 1; i >= 0; i--) {
+        fs.create("/dir1/" + names[i]);
+      }
+
+      mirrored.loadMirror();
+
+      File[] files = fs.list("/dir1");
+      File[] mirroredFiles = mfs.list("/dir1");
+      assertEquals(names.length, files.length);
+      assertEquals(names.length, mirroredFiles.length);
+
+      for (int i = 0; i < names.length; i++) {
+        assertEquals(names[i], files[i].getName());
+        assertEquals(names[i], mirroredFiles[i].getName());
+      }
+    }
+  }
+
+  @Test
+  public void mirror() throws Exception {
+
+    clear();
+    commit();
+
+    MetadataMirror mirror = new MetadataMirror();
+
+    try (FilesDAOPool pool = new FilesDAOPool(dataSource, 2);
+            FilesDAOPool mirrored = new FilesDAOPool(dataSource, 2)) {
+
+      mirrored.setMirror(mirror);
+
+      FileSystem fs = new FileSystem(pool, 1);
+      FileSystem mfs = new FileSystem(mirrored, 1);
+
+      fs.write("/dir1/dir2/file1", "Hello World!");
+      fs.create("/dir1/dir2/file2");
+      fs.create("/dir1/file3");
+
+      assertEquals(6, mirrored.loadMirror());
+      assertTrue(mirror.isLoaded());
+
+      assertTree(fs.tree("/"), mfs.tree("/"));
+      assertEquals(2, mfs.list("/dir1").length);
+      assertEquals("dir2", mfs.list("/dir1")[0].getName());
+      assertEquals("Hello World!", mfs.read("/dir1/dir2/file1"));
+
+      mfs.write("/dir1/file3", "Hello");
+      mfs.create("/dir4/file4");
+      mfs.move("/dir1/dir2", "/dir4");
+      mfs.delete("/dir1/file3", true);
+
+      assertTree(fs.tree("/"), mfs.tree("/"));
+      assertEquals(0, mfs.list("/dir1").length);
+      assertEquals(2, mfs.list("/dir4").length);
+      assertEquals("Hello World!", mfs.read("/dir4/dir2/file1"));
+
+      FilesDAO dao = mirrored.borrow();
+      int[] dir4 = dao.child("dir4", 1).getPath();
+      dao.rename("dir5", dir4);
+      assertNull(dao.child("dir4", 1));
+      mirrored.release(dao, false);
+
+      assertEquals(5, mfs.tree("/dir4").length);
+      assertTree(fs.tree("/"), mfs.tree("/"));
+
+      dao = mirrored.borrow();
+      dao.rename("dir5", dir4);
+      mirrored.release(dao, true);
+
+      assertEquals(5, mfs.tree("/dir5").length);
+      assertTree(fs.tree("/"), mfs.tree("/"));
+
+      mfs.delete("/dir5");
+      assertTree(fs.tree("/"), mfs.tree("/"));
+      assertEquals(3, mirror.size());
+      assertTrue(mirror.isLoaded());
+      assertNull(mirror.getLastFailure());
+    }
+  }
+
+  private static void assertTree(final File[] expected, final File[] actual) {
+
+    assertEquals(expected.length, actual.length);
+
+    for (int i = 0; i < expected.length; i++) {
+      assertTrue(Arrays.equals(expected[i].getId(), actual[i].getId()));
+      assertTrue(Arrays.equals(expected[i].getSid(), actual[i].getSid()));
+      assertEquals(expected[i].getNv(), actual[i].getNv());
+      assertEquals(expected[i].getDv(), actual[i].getDv());
+      assertEquals(expected[i].getSnv(), actual[i].getSnv());
+      assertEquals(expected[i].getSdv(), actual[i].getSdv());
+      assertEquals(expected[i].getLevel(), actual[i].getLevel());
+      assertEquals(expected[i].getName(), actual[i].getName());
+      assertEquals(expected[i].getContent(), actual[i].getContent());
+      assertTrue(Arrays.equals(expected[i].getData(), actual[i].getData()));
+    }
+  }
 }
@@ -1,14 +1,26 @@
 package org.adrianwalker.continuedfractions.filesystem;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import org.adrianwalker.continuedfractions.Key;
+import org.adrianwalker.continuedfractions.Keys;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 import static org.adrianwalker.continuedfractions.filesystem.Printer.print;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -78,6 +90,97 @@ public final class FilesDAOTest {
     assertNotNull(dao.write("o3", 3));
   }
 
+  @Test
+  public void writeWide() throws SQLException {
+
+    clear();
+
+    FilesDAO dao = new FilesDAO(connection);
+    assertNotNull(dao.write("o1000", 1000));
+    assertNotNull(dao.write("o1000o100000", 1000, 100000));
+    assertNotNull(dao.write("o1000o100000o30", 1000, 100000, 30));
+    assertNotNull(dao.write("o1000o100000o31", 1000, 100000, 31));
+
+    assertEquals("o1000o100000o30", dao.read(1000, 100000, 30).getName());
+    assertEquals("o1000o100000o31", dao.lastChild(1000, 100000).getName());
+    assertEquals(3, dao.tree(1000, 100000).length);
+  }
+
+  @Test
+  public void writeDeep() throws SQLException, IOException {
+
+    clear();
+
+    FilesDAO dao = new FilesDAO(connection);
+
+    int[] path = new int[100];
+    for (int level = 0; level < path.length; level++) {
+      path[level] = 1;
+      assertNotNull(dao.write("o1", Arrays.copyOf(path, level + 1)));
+    }
+
+    path[path.length - 1] = 2;
+    assertNotNull(dao.write("o2", path));
+    assertNotNull(dao.write("o2", 2));
+
+    assertEquals("o2", dao.read(path).getName());
+    assertEquals(101, dao.tree(1).length);
+    assertEquals(2, dao.children(Arrays.copyOf(path, path.length - 1)).length);
+
+    dao.move(Arrays.copyOf(path, 50), new int[]{2});
+
+    assertEquals(49, dao.tree(1).length);
+    assertEquals(53, dao.tree(2).length);
+
+    int[] moved = new int[51];
+    Arrays.fill(moved, 1);
+    moved[0] = 2;
+
+    assertEquals("o2", dao.lastChild(moved).getName());
+  }
+
+  @Test
+  public void moveKeys() throws SQLException {
+
+    clear();
+
+    FilesDAO dao = new FilesDAO(connection);
+
+    int[] path = new int[40];
+    for (int level = 0; level < path.length; level++) {
+      path[level] = level % 3 + 1;
+      assertNotNull(dao.write("o" + level, Arrays.copyOf(path, level + 1)));
+      assertNotNull(dao.write("s" + level, append(path, level, path[level] == 1 ? 2 : 1)));
+    }
+
+    assertNotNull(dao.write("t", 5));
+    assertNotNull(dao.write("t1", 5, 1));
+
+    assertEquals(77, dao.move(Arrays.copyOf(path, 2), new int[]{5, 1}));
+    assertEquals(2, dao.tree(1).length);
+
+    for (File file : dao.tree(5)) {
+
+      int[] p = file.getPath();
+      Key key = Keys.key(p, new Key());
+
+      assertEquals(p.length, file.getLevel());
+      assertTrue(Arrays.equals(FilesDAO.sid(p), file.getSid()));
+      assertEquals(key.getBigNv(), file.getNv());
+      assertEquals(key.getBigDv(), file.getDv());
+      assertEquals(key.getBigSnv(), file.getSnv());
+      assertEquals(key.getBigSdv(), file.getSdv());
+    }
+  }
+
+  private static int[] append(final int[] path, final int level, final int c) {
+
+    int[] p = Arrays.copyOf(path, level + 1);
+    p[level] = c;
+
+    return p;
+  }
+
   @Test
   public void read() throws SQLException {
 
@@ -95,6 +198,204 @@ public final class FilesDAOTest {
     assertEquals("o2o4o3", dao.read(2, 4, 3).getName());
   }
 
+  @Test
+  public void readTrashed() throws SQLException {
+
+    write();
+
+    FilesDAO dao = new FilesDAO(connection);
+    dao.trash(2, 4);
+
+    assertNull(dao.read(2, 4));
+    assertNull(dao.read(2, 4, 1));
+    assertNotNull(dao.read(2, 5));
+
+    dao.setMirror(new MetadataMirror());
+    dao.loadMirror();
+
+    assertNull(dao.read(2, 4));
+    assertNull(dao.read(2, 4, 1));
+    assertNotNull(dao.read(2, 5));
+  }
+
+  @Test
+  public void prepareThreshold() throws SQLException {
+
+    write();
+
+    FilesDAO dao = new FilesDAO(connection);
+    dao.setPrepareThreshold(1);
+    assertEquals(1, dao.getPrepareThreshold());
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals("o2o4o3", dao.read(2, 4, 3).getName());
+      assertEquals(3, dao.children(2, 4).length);
+    }
+
+    dao.close();
+
+    assertEquals("o2o4o3", dao.read(2, 4, 3).getName());
+    dao.close();
+  }
+
+  @Test
+  public void writeAll() throws SQLException {
+
+    write();
+
+    FilesDAO dao = new FilesDAO(connection);
+    File[] files = dao.write(new String[]{"o2o6", "o2o6o1", "o2o6o1o1"}, 2, 6, 1, 1);
+
+    assertEquals(3, files.length);
+    assertEquals("o2o6", files[0].getName());
+    assertEquals("o2o6o1o1", files[2].getName());
+    assertEquals("o2o6o1", dao.read(2, 6, 1).getName());
+    assertEquals(3, dao.tree(2, 6).length);
+
+    int[][] paths = {{2, 6}, {2, 6, 1}, {2, 6, 1, 1}};
+
+    for (int i = 0; i < paths.length; i++) {
+
+      int[] p = paths[i];
+      Key key = Keys.key(p, new Key());
+
+      assertTrue(Arrays.equals(p, files[i].getPath()));
+      assertEquals(p.length, files[i].getLevel());
+      assertTrue(Arrays.equals(FilesDAO.sid(p), files[i].getSid()));
+      assertEquals(key.getBigNv(), files[i].getNv());
+      assertEquals(key.getBigDv(), files[i].getDv());
+      assertEquals(key.getBigSnv(), files[i].getSnv());
+      assertEquals(key.getBigSdv(), files[i].getSdv());
+    }
+  }
+
+  @Test
+  public void resolve() throws SQLException {
+
+    write();
+
+    FilesDAO dao = new FilesDAO(connection);
+    File[] files = dao.resolve(new String[]{"o2", "o2o4", "o2o4o3"});
+
+    assertEquals(3, files.length);
+    assertEquals("o2", files[0].getName());
+    assertEquals("o2o4", files[1].getName());
+    assertEquals("o2o4o3", files[2].getName());
+    assertTrue(Arrays.equals(new int[]{2, 4, 3}, files[2].getPath()));
+
+    files = dao.resolve(new String[]{"o2o4", "???", "o2o4o3"}, 2);
+
+    assertEquals(1, files.length);
+    assertEquals("o2o4", files[0].getName());
+  }
+
+  @Test
+  public void resolveCached() throws SQLException, IOException {
+
+    write();
+
+    PathCache cache = new PathCache(4);
+    FilesDAO dao = new FilesDAO(connection, cache);
+
+    assertEquals(3, dao.resolve(new String[]{"o2", "o2o4", "o2o4o3"}).length);
+    assertEquals(0, cache.size());
+    dao.commit();
+    assertEquals(0, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(3, cache.size());
+
+    File[] files = dao.resolve(new String[]{"o2", "o2o4", "o2o4o3"});
+    assertEquals(3, files.length);
+    assertEquals("o2o4o3", files[2].getName());
+    assertEquals(3, cache.getHits());
+
+    files = dao.resolve(new String[]{"o2", "o2o4", "o2o4o2"});
+    assertEquals(3, files.length);
+    assertEquals("o2o4o2", files[2].getName());
+    dao.commit();
+    assertEquals(4, cache.size());
+
+    dao.rename("o2o4x", 2, 4);
+    assertEquals(4, cache.size());
+    assertEquals(2, dao.resolve(new String[]{"o2", "o2o4x"}).length);
+    assertEquals(1, dao.resolve(new String[]{"o2", "o2o4"}).length);
+    dao.commit();
+    assertEquals(1, cache.size());
+
+    dao.move(new int[]{2, 4}, new int[]{3});
+    dao.commit();
+    assertEquals(1, cache.size());
+    assertEquals(1, dao.resolve(new String[]{"o2", "o2o4x"}).length);
+
+    dao.remove(2);
+    dao.rollback();
+    assertEquals(1, cache.size());
+
+    dao.remove(2);
+    dao.commit();
+    assertEquals(0, cache.size());
+    assertEquals(0, dao.resolve(new String[]{"o2"}).length);
+  }
+
+  @Test
+  public void resolveCachedUncommitted() throws SQLException {
+
+    clear();
+    commit();
+
+    PathCache cache = new PathCache(16);
+
+    try (Connection other = DriverManager.getConnection(URL, USERNAME, PASSWORD)) {
+
+      other.setAutoCommit(false);
+
+      FilesDAO dao = new FilesDAO(connection, cache);
+      FilesDAO otherDao = new FilesDAO(other, cache);
+
+      dao.write("o1", 1);
+      assertEquals(1, dao.resolve(new String[]{"o1"}).length);
+      assertEquals(0, otherDao.resolve(new String[]{"o1"}).length);
+      dao.rollback();
+      otherDao.commit();
+      assertEquals(0, cache.size());
+
+      dao.write("o1", 1);
+      dao.commit();
+      assertEquals(1, otherDao.resolve(new String[]{"o1"}).length);
+
+      dao.rename("o1x", 1);
+      otherDao.commit();
+      assertEquals(1, cache.size());
+      dao.commit();
+      assertEquals(0, cache.size());
+
+      assertEquals(0, otherDao.resolve(new String[]{"o1"}).length);
+      assertEquals(1, otherDao.resolve(new String[]{"o1x"}).length);
+      dao.rename("o1y", 1);
+      dao.commit();
+      otherDao.commit();
+      assertEquals(0, cache.size());
+      assertEquals(0, otherDao.resolve(new String[]{"o1x"}).length);
+      otherDao.commit();
+    }
+  }
+
+  @Test
+  public void ancestors() throws SQLException {
+
+    write();
+
+    FilesDAO dao = new FilesDAO(connection);
+    File[] files = dao.ancestors(2, 4, 3);
+
+    assertEquals(2, files.length);
+    assertEquals("o2", files[0].getName());
+    assertEquals("o2o4", files[1].getName());
+    assertTrue(Arrays.equals(new int[]{2, 4}, files[1].getPath()));
+
+    assertEquals(0, dao.ancestors(2).length);
+  }
+
   @Test
   public void children() throws SQLException {
 
@@ -177,6 +478,43 @@ public final class FilesDAOTest {
     assertEquals("o2o5o3", files[11].getName());
   }
 
+  @Test
+  public void treeHandler() throws SQLException, FileSystemException {
+
+    write();
+
+    FilesDAO dao = new FilesDAO(connection);
+    dao.setFetchSize(5);
+
+    final File[] files = dao.tree(2);
+    final List<File> handled = new ArrayList<>();
+
+    assertEquals(12, dao.tree(new FileHandler() {
+
+      @Override
+      public void handle(final File file) {
+        handled.add(file);
+      }
+    }, 2));
+
+    for (int i = 0; i < files.length; i++) {
+      assertEquals(files[i].getName(), handled.get(i).getName());
+    }
+
+    handled.clear();
+
+    assertEquals(5, dao.children(new FileHandler() {
+
+      @Override
+      public void handle(final File file) {
+        handled.add(file);
+      }
+    }, 2));
+
+    assertEquals("o2o1", handled.get(0).getName());
+    assertEquals("o2o5", handled.get(4).getName());
+  }
+
   @Test
   public void rename() throws SQLException {
 
@@ -329,6 +667,27 @@ public final class FilesDAOTest {
     assertEquals(0, files.length);
   }
 
+  @Test
+  public void removeSharedContent() throws SQLException, IOException {
+
+    write();
+
+    FilesDAO dao = new FilesDAO(connection);
+
+    long content = dao.fork(dao.read(2, 4, 1));
+    dao.copy(new int[]{2, 4, 1}, new int[]{2, 5});
+    assertEquals(1, count("blobs"));
+
+    assertEquals(4, dao.remove(2, 4));
+    assertEquals(1, count("blobs"));
+    assertEquals(1, count("pg_largeobject_metadata where oid = " + content));
+
+    assertEquals(9, dao.remove(2));
+    assertEquals(0, dao.tree(2).length);
+    assertEquals(0, count("blobs"));
+    assertEquals(0, count("pg_largeobject_metadata where oid = " + content));
+  }
+
   @Test
   public void readWriteContent() throws SQLException, IOException {
 
@@ -338,7 +697,7 @@ public final class FilesDAOTest {
 
     FilesDAO dao = new FilesDAO(connection);
 
-    long oid = dao.read(3).getContent();
+    long oid = dao.fork(dao.read(3));
 
     OutputStream os = dao.getOutputStream(oid);
     os.write(text.getBytes());
@@ -362,7 +721,7 @@ public final class FilesDAOTest {
 
     FilesDAO dao = new FilesDAO(connection);
 
-    OutputStream os = dao.getOutputStream(dao.read(2, 4).getContent());
+    OutputStream os = dao.getOutputStream(dao.fork(dao.read(2, 4)));
     os.write(text.getBytes());
     os.close();
 
@@ -383,6 +742,195 @@ public final class FilesDAOTest {
     assertEquals(text, new String(b));
   }
 
+  @Test
+  public void largeContent() throws SQLException, IOException {
+
+    byte[] content = new byte[3 * 1024 * 1024 + 17];
+    new Random(1).nextBytes(content);
+
+    write();
+
+    FilesDAO dao = new FilesDAO(connection);
+
+    OutputStream os = dao.getOutputStream(dao.fork(dao.read(2, 4)));
+    os.write(content[0]);
+    os.write(content, 1, 100);
+    os.write(content, 101, content.length - 101);
+    os.close();
+
+    dao.copy(new int[]{2, 4}, new int[]{2, 5});
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Stream.copy(dao.getInputStream(dao.read(2, 5, 4).getContent()), out, new byte[1000]);
+
+    assertTrue(Arrays.equals(content, out.toByteArray()));
+
+    InputStream is = dao.getInputStream(dao.read(2, 4).getContent());
+    assertEquals(content[0] & 0xFF, is.read());
+    is.close();
+  }
+
+  @Test
+  public void copyOnWrite() throws SQLException, IOException {
+
+    write();
+
+    FilesDAO dao = new FilesDAO(connection);
+
+    Stream.fromString("original", dao.getOutputStream(dao.fork(dao.read(2, 4, 1))));
+    dao.copy(new int[]{2, 4}, new int[]{2, 5});
+
+    File original = dao.read(2, 4, 1);
+    File copy = dao.read(2, 5, 4, 1);
+    assertEquals(original.getContent(), copy.getContent());
+
+    Stream.fromString("modified", dao.getOutputStream(dao.fork(copy)));
+
+    assertTrue(original.getContent() != dao.read(2, 5, 4, 1).getContent());
+    assertEquals(original.getContent(), dao.fork(dao.read(2, 4, 1)));
+    assertEquals("original", Stream.toString(dao.getInputStream(dao.read(2, 4, 1).getContent())));
+    assertEquals("modified", Stream.toString(dao.getInputStream(dao.read(2, 5, 4, 1).getContent())));
+
+    dao.copy(new int[]{2, 4}, new int[]{2, 5});
+    dao.remove(2, 4);
+
+    assertEquals("original", Stream.toString(dao.getInputStream(dao.read(2, 5, 5, 1).getContent())));
+  }
+
+  @Test
+  public void inlineContent() throws SQLException, IOException {
+
+    write();
+
+    FilesDAO dao = new FilesDAO(connection);
+    dao.setInlineSize(16);
+
+    assertEquals(0, dao.read(2, 4).getContent());
+    assertEquals(0, count("blobs"));
+
+    Stream.fromString("Hello", dao.getOutputStream(dao.read(2, 4, 1)));
+
+    File file = dao.read(2, 4, 1);
+    assertEquals(0, file.getContent());
+    assertEquals("Hello", new String(file.getData()));
+    assertEquals("Hello", Stream.toString(dao.getInputStream(file)));
+
+    dao.copy(new int[]{2, 4}, new int[]{2, 5});
+    assertEquals("Hello", Stream.toString(dao.getInputStream(dao.read(2, 5, 4, 1))));
+
+    Stream.fromString("Hello World, Hello World!", dao.getOutputStream(file));
+
+    file = dao.read(2, 4, 1);
+    assertTrue(0 != file.getContent());
+    assertNull(file.getData());
+    assertEquals(25, dao.size(file));
+    assertEquals("Hello World, Hello World!", Stream.toString(dao.getInputStream(file)));
+    assertEquals("Hello", Stream.toString(dao.getInputStream(dao.read(2, 5, 4, 1))));
+    assertEquals(1, count("blobs"));
+
+    Stream.fromString("Hi", dao.getOutputStream(file));
+
+    assertEquals("Hi", Stream.toString(dao.getInputStream(dao.read(2, 4, 1))));
+    assertEquals(0, count("blobs"));
+  }
+
+  @Test
+  public void chunkedContent() throws SQLException, IOException {
+
+    write();
+
+    FilesDAO dao = new FilesDAO(connection);
+    dao.setChunkSize(1024);
+
+    byte[] content = new byte[10 * 1024 + 100];
+    new Random(0).nextBytes(content);
+
+    write(dao, dao.fork(dao.read(2, 4, 1)), content);
+    assertEquals(11, count("chunks"));
+    assertEquals(content.length, dao.size(dao.read(2, 4, 1).getContent()));
+
+    write(dao, dao.fork(dao.read(2, 4, 2)), content);
+    assertEquals(11, count("chunks"));
+
+    dao.copy(new int[]{2, 4}, new int[]{2, 5});
+    byte[] modified = Arrays.copyOf(content, content.length);
+    modified[5000] ^= 1;
+    write(dao, dao.fork(dao.read(2, 5, 4, 1)), modified);
+    assertEquals(12, count("chunks"));
+
+    assertTrue(Arrays.equals(content, read(dao, dao.read(2, 4, 1).getContent())));
+    assertTrue(Arrays.equals(modified, read(dao, dao.read(2, 5, 4, 1).getContent())));
+
+    dao.remove(2, 4);
+    dao.remove(2, 5, 4, 2);
+    assertEquals(11, count("chunks"));
+
+    write(dao, dao.fork(dao.read(2, 5, 4, 1)), new byte[0]);
+    assertEquals(0, count("chunks"));
+    assertEquals(0, dao.size(dao.read(2, 5, 4, 1).getContent()));
+  }
+
+  @Test
+  public void chunkedContentDefaultDAO() throws SQLException, IOException {
+
+    write();
+
+    FilesDAO chunked = new FilesDAO(connection);
+    chunked.setChunkSize(1024);
+    FilesDAO dao = new FilesDAO(connection);
+
+    byte[] content = new byte[10 * 1024 + 100];
+    new Random(0).nextBytes(content);
+
+    write(chunked, chunked.fork(chunked.read(2, 4, 1)), content);
+    long oid = dao.read(2, 4, 1).getContent();
+    assertEquals(content.length, dao.size(oid));
+    assertTrue(Arrays.equals(content, read(dao, oid)));
+
+    byte[] rewritten = Arrays.copyOf(content, 5000);
+    try (OutputStream out = dao.getOutputStream(dao.read(2, 4, 1))) {
+      out.write(rewritten);
+    }
+
+    assertEquals(0, count("manifests"));
+    assertEquals(0, count("chunks"));
+    assertTrue(Arrays.equals(rewritten, read(chunked, oid)));
+
+    write(chunked, oid, content);
+    try (SeekableByteChannel channel = dao.getChannel(dao.read(2, 4, 1), EnumSet.of(StandardOpenOption.WRITE))) {
+      channel.position(content.length);
+      channel.write(ByteBuffer.wrap(new byte[]{1}));
+    }
+
+    assertEquals(0, count("manifests"));
+    assertEquals(content.length + 1, chunked.size(oid));
+    assertTrue(Arrays.equals(content, Arrays.copyOf(read(chunked, oid), content.length)));
+  }
+
+  private static void write(final FilesDAO dao, final long oid, final byte[] content) throws SQLException, IOException {
+
+    try (OutputStream out = dao.getOutputStream(oid)) {
+      out.write(content);
+    }
+  }
+
+  private static byte[] read(final FilesDAO dao, final long oid) throws SQLException, IOException {
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Stream.copy(dao.getInputStream(oid), out);
+
+    return out.toByteArray();
+  }
+
+  private static long count(final String table) throws SQLException {
+
+    try (java.sql.Statement statement = connection.createStatement();
+            java.sql.ResultSet rs = statement.executeQuery("select count(*) from " + table)) {
+      rs.next();
+      return rs.getLong(1);
+    }
+  }
+
   @Test
   public void moveContent() throws SQLException, IOException {
 
@@ -392,7 +940,7 @@ public final class FilesDAOTest {
 
     FilesDAO dao = new FilesDAO(connection);
 
-    OutputStream os = dao.getOutputStream(dao.read(2, 4).getContent());
+    OutputStream os = dao.getOutputStream(dao.fork(dao.read(2, 4)));
     os.write(text.getBytes());
     os.close();
 
@@ -0,0 +1,122 @@
+package org.adrianwalker.continuedfractions.filesystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.postgresql.ds.PGSimpleDataSource;
+
+public final class ImporterTest {
+
+  private static final String DRIVER = "org.postgresql.Driver";
+  private static final String URL = "jdbc:postgresql://localhost:5432/postgres";
+  private static final String USERNAME = "postgres";
+  private static final String PASSWORD = "postgres";
+
+  private static Connection connection;
+  private static PGSimpleDataSource dataSource;
+
+  public ImporterTest() {
+  }
+
+  @BeforeClass
+  public static void openConnection() throws ClassNotFoundException, SQLException {
+
+    Class.forName(DRIVER);
+
+    connection = DriverManager.getConnection(URL, USERNAME, PASSWORD);
+    connection.setAutoCommit(false);
+
+    dataSource = new PGSimpleDataSource();
+    dataSource.setServerName("localhost");
+    dataSource.setPortNumber(5432);
+    dataSource.setDatabaseName("postgres");
+    dataSource.setUser(USERNAME);
+    dataSource.setPassword(PASSWORD);
+  }
+
+  @AfterClass
+  public static void closeConnection() throws SQLException {
+
+    if (null != connection) {
+      connection.close();
+    }
+  }
+
+  @Before
+  public void clear() throws SQLException {
+
+    FilesDAO dao = new FilesDAO(connection);
+    dao.clear();
+    connection.commit();
+  }
+
+  @Test
+  public void importDirectory() throws SQLException, IOException, FileSystemException {
+
+    java.nio.file.Path directory = Files.createTempDirectory("import");
+    Files.createDirectories(directory.resolve("dir1/dir2"));
+    Files.createDirectories(directory.resolve("dir3"));
+    for (int i = 0; i < 10; i++) {
+      Files.write(directory.resolve("dir1/dir2/file" + i), ("text" + i).getBytes("UTF-8"));
+    }
+    Files.write(directory.resolve("file"), "text".getBytes("UTF-8"));
+
+    try (FilesDAOPool pool = new FilesDAOPool(dataSource, 2)) {
+
+      FileSystem fs = new FileSystem(pool, 1);
+      fs.create("/existing");
+
+      int[] path = new Importer(pool, 3, 4).importDirectory(directory, "import", 1);
+      assertTrue(Arrays.equals(new int[]{1, 2}, path));
+
+      assertEquals(2, fs.list("/").length);
+      assertEquals(3, fs.list("/import").length);
+      assertEquals(10, fs.list("/import/dir1/dir2").length);
+      assertEquals(0, fs.list("/import/dir3").length);
+      assertEquals("text7", fs.read("/import/dir1/dir2/file7"));
+      assertEquals("text", fs.read("/import/file"));
+      assertEquals(15, fs.tree("/import").length);
+    }
+  }
+
+  @Test
+  public void importZip() throws SQLException, IOException, FileSystemException {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+
+      zip.putNextEntry(new ZipEntry("dir1/"));
+      zip.putNextEntry(new ZipEntry("dir1/file1"));
+      zip.write("text1".getBytes("UTF-8"));
+      zip.putNextEntry(new ZipEntry("dir2/dir3/file2"));
+      zip.write(new byte[2 * 1024 * 1024]);
+      zip.putNextEntry(new ZipEntry("dir2/dir3/file3"));
+      zip.write("text3".getBytes("UTF-8"));
+    }
+
+    try (FilesDAOPool pool = new FilesDAOPool(dataSource, 2)) {
+
+      FileSystem fs = new FileSystem(pool, 1);
+      new Importer(pool, 2, 100).importZip(new ByteArrayInputStream(bytes.toByteArray()), "zip", 1);
+
+      assertEquals(2, fs.list("/zip").length);
+      assertEquals("text1", fs.read("/zip/dir1/file1"));
+      assertEquals(2 * 1024 * 1024, fs.read("/zip/dir2/dir3/file2").length());
+      assertEquals("text3", fs.read("/zip/dir2/dir3/file3"));
+    }
+  }
+}